@@ -0,0 +1,97 @@
+package com.diary;
+
+import java.io.*;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs auto-backups on a background thread. Triggers that arrive while a
+ * backup is running collapse into a single follow-up backup of the most
+ * recent snapshot.
+ */
+class BackupScheduler {
+    private static final DateTimeFormatter TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "diary-auto-backup");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private boolean running;
+    private boolean shutdown;
+    private DiaryFileHandler pendingHandler;
+    private List<String> pendingSnapshot;
+    private long completed;
+    private long coalesced;
+    private String lastResult = "none yet";
+    
+    /** Schedules a backup of the entries as they are listed right now. */
+    synchronized void trigger(DiaryFileHandler handler, List<String> snapshot) {
+        if (shutdown) {
+            return;
+        }
+        if (running) {
+            if (pendingSnapshot != null) {
+                coalesced++;
+            }
+            pendingHandler = handler;
+            pendingSnapshot = snapshot;
+            return;
+        }
+        running = true;
+        executor.execute(() -> run(handler, snapshot));
+    }
+    
+    private void run(DiaryFileHandler handler, List<String> snapshot) {
+        String result;
+        try {
+            handler.createBackup(snapshot);
+            result = "completed at " + LocalDateTime.now().format(TIME_FORMATTER) + " (" + snapshot.size() + " entries)";
+        } catch (IOException | RuntimeException e) {
+            result = "failed at " + LocalDateTime.now().format(TIME_FORMATTER) + ": " + e.getMessage();
+            System.err.println("Warning: Auto-backup failed: " + e.getMessage());
+        }
+        synchronized (this) {
+            completed++;
+            lastResult = result;
+            if (pendingSnapshot != null) {
+                DiaryFileHandler nextHandler = pendingHandler;
+                List<String> nextSnapshot = pendingSnapshot;
+                pendingHandler = null;
+                pendingSnapshot = null;
+                executor.execute(() -> run(nextHandler, nextSnapshot));
+            } else {
+                running = false;
+                notifyAll();
+            }
+        }
+    }
+    
+    /** Refuses new triggers and waits for the running backup and its follow-up. */
+    void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+            awaitIdle();
+        }
+        executor.shutdown();
+    }
+    
+    /** Waits for the running backup and its follow-up, e.g. before their handler is closed. */
+    synchronized void awaitIdle() {
+        while (running) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+    
+    synchronized String getStatus() {
+        String state = running ? (pendingSnapshot != null ? "running, follow-up queued" : "running") : "idle";
+        return String.format("%s; %d completed, %d coalesced; last %s", state, completed, coalesced, lastResult);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,310 @@
+package com.diary;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.*;
+
+/**
+ * Compresses entries at rest on top of another store. A compressed entry is
+ * a header (the bytes FF 'D' 'Z', a format version, the id of the preset
+ * dictionary or 0, the original length) followed by a raw Deflate stream.
+ * Entries without the header are plain UTF-8, which never contains FF, so
+ * plain and compressed entries can live side by side and are both read
+ * transparently whether compression is currently on or off.
+ *
+ * Short entries compress poorly on their own, so a dictionary of the
+ * diary's most frequent words and phrases is trained from its entries and
+ * kept in {@code diary.dict.<id>}; older dictionaries are kept for the
+ * entries that still refer to them.
+ */
+class CompressedEntryStore implements EntryStore {
+    static final String DICTIONARY_PREFIX = "diary.dict.";
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+    // Deflate only looks back 32 KB, so a larger dictionary would not help
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    
+    private final EntryStore store;
+    private final Path dictionaryDir;
+    private final int level;
+    private final DiaryMetrics metrics;
+    private final Map<Integer, byte[]> dictionaries = new ConcurrentHashMap<>();
+    private volatile int dictionaryId;
+    private final LongAdder entriesWritten = new LongAdder();
+    private final LongAdder originalBytes = new LongAdder();
+    private final LongAdder storedBytes = new LongAdder();
+    
+    /**
+     * @param level Deflater level for new entries, or -1 to write them plain
+     */
+    CompressedEntryStore(EntryStore store, Path dictionaryDir, int level, DiaryMetrics metrics) throws IOException {
+        this.store = store;
+        this.dictionaryDir = dictionaryDir;
+        this.level = level;
+        this.metrics = metrics;
+        loadDictionaries();
+    }
+    
+    boolean isCompressing() {
+        return level >= 0;
+    }
+    
+    boolean hasDictionary() {
+        return dictionaryId != 0;
+    }
+    
+    /**
+     * Builds a dictionary from sample entries and uses it for entries
+     * written from now on. The words and two-word phrases that save the most
+     * bytes go in, the most valuable last, since Deflate encodes near
+     * matches more cheaply.
+     */
+    void trainDictionary(List<String> samples) throws IOException {
+        Map<String, Integer> counts = new HashMap<>();
+        for (String sample : samples) {
+            String previous = null;
+            for (String word : sample.split("\\s+")) {
+                if (word.isEmpty()) {
+                    continue;
+                }
+                counts.merge(word + ' ', 1, Integer::sum);
+                if (previous != null) {
+                    counts.merge(previous + word + ' ', 1, Integer::sum);
+                }
+                previous = word + ' ';
+            }
+        }
+        List<Map.Entry<String, Integer>> candidates = new ArrayList<>();
+        for (Map.Entry<String, Integer> candidate : counts.entrySet()) {
+            if (candidate.getValue() > 1) {
+                candidates.add(candidate);
+            }
+        }
+        candidates.sort(Comparator.comparingLong(
+            (Map.Entry<String, Integer> candidate) -> (long) candidate.getValue() * candidate.getKey().length()).reversed());
+        
+        List<byte[]> chosen = new ArrayList<>();
+        int size = 0;
+        for (Map.Entry<String, Integer> candidate : candidates) {
+            byte[] bytes = candidate.getKey().getBytes(StandardCharsets.UTF_8);
+            if (size + bytes.length > DICTIONARY_SIZE) {
+                break;
+            }
+            chosen.add(bytes);
+            size += bytes.length;
+        }
+        if (chosen.isEmpty()) {
+            return;
+        }
+        ByteArrayOutputStream dictionary = new ByteArrayOutputStream(size);
+        for (int i = chosen.size() - 1; i >= 0; i--) {
+            dictionary.write(chosen.get(i));
+        }
+        
+        int id = dictionaries.keySet().stream().max(Integer::compare).orElse(0) + 1;
+        Path path = dictionaryDir.resolve(DICTIONARY_PREFIX + id);
+        Path temp = dictionaryDir.resolve(DICTIONARY_PREFIX + id + ".tmp");
+        Files.write(temp, dictionary.toByteArray());
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+        dictionaries.put(id, dictionary.toByteArray());
+        dictionaryId = id;
+    }
+    
+    @Override
+    public void write(String filename, byte[] content) throws IOException {
+        store.write(filename, compress(content));
+    }
+    
+    @Override
+    public void writeAll(Map<String, byte[]> entries) throws IOException {
+        Map<String, byte[]> compressed = new LinkedHashMap<>();
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            compressed.put(entry.getKey(), compress(entry.getValue()));
+        }
+        store.writeAll(compressed);
+    }
+    
+    @Override
+    public void replace(String oldFilename, String newFilename, byte[] content) throws IOException {
+        store.replace(oldFilename, newFilename, compress(content));
+    }
+    
+    @Override
+    public byte[] read(String filename) throws IOException {
+        return decode(filename, store.read(filename));
+    }
+    
+    /** The entry as stored, compressed or not. */
+    byte[] readStored(String filename) throws IOException {
+        return store.read(filename);
+    }
+    
+    /** The original content of stored entry bytes. */
+    byte[] decode(String filename, byte[] stored) throws IOException {
+        return isCompressed(ByteBuffer.wrap(stored)) ? decompress(ByteBuffer.wrap(stored), filename) : stored;
+    }
+    
+    // Plain entries stay mapped; compressed ones are inflated onto the heap
+    @Override
+    public ByteBuffer map(String filename) throws IOException {
+        ByteBuffer stored = store.map(filename);
+        return isCompressed(stored) ? ByteBuffer.wrap(decompress(stored, filename)) : stored;
+    }
+    
+    @Override
+    public boolean delete(String filename) throws IOException {
+        return store.delete(filename);
+    }
+    
+    @Override
+    public long version(String filename) throws IOException {
+        return store.version(filename);
+    }
+    
+    @Override
+    public long size(String filename) throws IOException {
+        return store.size(filename);
+    }
+    
+    @Override
+    public List<String> list() throws IOException {
+        return store.list();
+    }
+    
+    @Override
+    public long count() throws IOException {
+        return store.count();
+    }
+    
+    @Override
+    public void sync() throws IOException {
+        store.sync();
+    }
+    
+    @Override
+    public void close() throws IOException {
+        store.close();
+    }
+    
+    /** Bytes of entries written so far in this session, after compression. */
+    long getStoredBytes() {
+        return storedBytes.sum();
+    }
+    
+    String getStatistics() {
+        if (!isCompressing()) {
+            return "off";
+        }
+        long original = originalBytes.sum();
+        long stored = storedBytes.sum();
+        return String.format("deflate level %d, %s; %d entries written this session, %d KB -> %d KB (%.0f%%)",
+            level, hasDictionary() ? "dictionary #" + dictionaryId : "no dictionary yet",
+            entriesWritten.sum(), original / 1024, stored / 1024, original == 0 ? 100.0 : 100.0 * stored / original);
+    }
+    
+    // A deflater per call, ended at once: its native memory is not freed
+    // until then, and requests may each run on a thread of their own
+    private byte[] compress(byte[] content) {
+        if (!isCompressing()) {
+            storedBytes.add(content.length);
+            return content;
+        }
+        int id = dictionaryId;
+        byte[] out = new byte[HEADER_SIZE + content.length + 64];
+        int length = HEADER_SIZE;
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (id != 0) {
+                deflater.setDictionary(dictionaries.get(id));
+            }
+            deflater.setInput(content);
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (length == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                length += deflater.deflate(out, length, out.length - length);
+            }
+        } finally {
+            deflater.end();
+        }
+        entriesWritten.increment();
+        originalBytes.add(content.length);
+        // Incompressible entries are kept as they are
+        if (length >= content.length) {
+            storedBytes.add(content.length);
+            return content;
+        }
+        storedBytes.add(length);
+        ByteBuffer.wrap(out)
+            .put((byte) 0xFF).put((byte) 'D').put((byte) 'Z').put((byte) FORMAT_VERSION)
+            .putInt(id)
+            .putInt(content.length);
+        return Arrays.copyOf(out, length);
+    }
+    
+    private static boolean isCompressed(ByteBuffer stored) {
+        int start = stored.position();
+        return stored.remaining() >= HEADER_SIZE && stored.get(start) == (byte) 0xFF
+            && stored.get(start + 1) == 'D' && stored.get(start + 2) == 'Z';
+    }
+    
+    private byte[] decompress(ByteBuffer stored, String filename) throws IOException {
+        long begin = System.nanoTime();
+        ByteBuffer header = stored.duplicate();
+        header.position(header.position() + 3);
+        int version = header.get();
+        int id = header.getInt();
+        int length = header.getInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Entry " + filename + " uses unknown compression format " + version);
+        }
+        byte[] dictionary = null;
+        if (id != 0) {
+            dictionary = dictionaries.get(id);
+            if (dictionary == null) {
+                throw new IOException("Entry " + filename + " needs missing dictionary " + DICTIONARY_PREFIX + id);
+            }
+        }
+        byte[] content = new byte[length];
+        Inflater inflater = new Inflater(true);
+        try {
+            if (dictionary != null) {
+                inflater.setDictionary(dictionary);
+            }
+            inflater.setInput(header);
+            int read = 0;
+            while (read < length) {
+                int n = inflater.inflate(content, read, length - read);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("Entry " + filename + " is truncated");
+                }
+                read += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Entry " + filename + " is corrupt: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        metrics.record("decompressEntry", System.nanoTime() - begin);
+        return content;
+    }
+    
+    private void loadDictionaries() throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dictionaryDir, DICTIONARY_PREFIX + "*")) {
+            for (Path path : stream) {
+                String suffix = path.getFileName().toString().substring(DICTIONARY_PREFIX.length());
+                if (suffix.matches("\\d+")) {
+                    int id = Integer.parseInt(suffix);
+                    dictionaries.put(id, Files.readAllBytes(path));
+                    dictionaryId = Math.max(dictionaryId, id);
+                }
+            }
+        }
+    }
+}
\ No newline at end of file
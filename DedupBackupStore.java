@@ -0,0 +1,298 @@
+package com.diary;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Backup store that keeps every distinct chunk of entry content only once.
+ *
+ * Entries are cut into content-defined chunks with a gear rolling hash, so
+ * an edit only changes the chunks around it. Chunks are stored under
+ * {@code chunks/ab/<sha256>}, and each backup is a snapshot manifest that
+ * lists the chunks of every entry. Old snapshots are pruned by count and a
+ * mark-and-sweep pass deletes chunks no snapshot refers to anymore.
+ *
+ * Snapshot lines are {@code E<tab>name<tab>version<tab>stored size<tab>chunks}.
+ * An entry whose version and stored size match the previous snapshot
+ * reuses its chunk list without being read.
+ */
+class DedupBackupStore {
+    static final String PREFIX = "dedup_";
+    static final String SUFFIX = ".snapshot";
+    private static final String HEADER = "# diary dedup snapshot v2";
+    // Snapshots without the stored size column
+    private static final String HEADER_V1 = "# diary dedup snapshot v1";
+    private static final long UNKNOWN_SIZE = -1;
+    private static final int MIN_CHUNK = 2 * 1024;
+    private static final int MAX_CHUNK = 64 * 1024;
+    private static final long CHUNK_MASK = (1L << 13) - 1; // ~8 KB average
+    private static final long[] GEAR = new long[256];
+    // Pruning and collection must not interleave with a snapshot being written
+    private static final Object LOCK = new Object();
+    
+    static {
+        Random random = new Random(0x5EED_D1A7L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+    
+    private static final class Snapshot {
+        final long version;
+        final long storedSize;
+        final String chunks;
+        
+        Snapshot(long version, long storedSize, String chunks) {
+            this.version = version;
+            this.storedSize = storedSize;
+            this.chunks = chunks;
+        }
+    }
+    
+    private final EntryStore store;
+    private final Path chunksDir;
+    private final Path snapshotsDir;
+    
+    DedupBackupStore(EntryStore store, Path backupDir) throws IOException {
+        this.store = store;
+        this.chunksDir = directory(backupDir).resolve("chunks");
+        this.snapshotsDir = directory(backupDir).resolve("snapshots");
+        Files.createDirectories(chunksDir);
+        Files.createDirectories(snapshotsDir);
+    }
+    
+    /**
+     * Writes a snapshot of the given entries and returns the number of new
+     * chunks that had to be stored.
+     */
+    int create(String snapshotName, List<String> entries, Path configPath) throws IOException {
+        synchronized (LOCK) {
+            Map<String, Snapshot> previous = latestSnapshot();
+            int newChunks = 0;
+            Path snapshotPath = snapshotsDir.resolve(snapshotName);
+            Path temp = snapshotPath.resolveSibling(snapshotName + ".tmp");
+            try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                writer.write(HEADER);
+                writer.newLine();
+                for (String entry : entries) {
+                    long version;
+                    long storedSize;
+                    try {
+                        version = store.version(entry);
+                        storedSize = store.size(entry);
+                    } catch (FileNotFoundException e) {
+                        continue; // Deleted since the snapshot was taken
+                    }
+                    Snapshot known = previous.get(entry);
+                    String chunks;
+                    if (known != null && known.version == version && known.storedSize == storedSize) {
+                        chunks = known.chunks;
+                    } else {
+                        List<String> hashes = new ArrayList<>();
+                        newChunks += storeChunks(store.read(entry), hashes);
+                        chunks = String.join(",", hashes);
+                    }
+                    writer.write("E\t" + entry + "\t" + version + "\t" + storedSize + "\t" + chunks);
+                    writer.newLine();
+                }
+                if (Files.exists(configPath)) {
+                    List<String> hashes = new ArrayList<>();
+                    newChunks += storeChunks(Files.readAllBytes(configPath), hashes);
+                    writer.write("C\t" + configPath.getFileName() + "\t0\t0\t" + String.join(",", hashes));
+                    writer.newLine();
+                }
+            }
+            Files.move(temp, snapshotPath, StandardCopyOption.ATOMIC_MOVE);
+            return newChunks;
+        }
+    }
+    
+    List<String> listSnapshots() throws IOException {
+        List<String> snapshots = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(snapshotsDir, PREFIX + "*" + SUFFIX)) {
+            for (Path path : stream) {
+                snapshots.add(path.getFileName().toString());
+            }
+        }
+        snapshots.sort(DiaryFileHandler.BACKUP_ORDER);
+        return snapshots;
+    }
+    
+    static Path directory(Path backupDir) {
+        return backupDir.resolve("dedup");
+    }
+    
+    Path getSnapshotsDirectory() {
+        return snapshotsDir;
+    }
+    
+    int restore(String snapshotName, Path targetDir) throws IOException {
+        Path snapshotPath = snapshotsDir.resolve(snapshotName);
+        if (!Files.exists(snapshotPath)) {
+            throw new FileNotFoundException("Backup not found: " + snapshotName);
+        }
+        Files.createDirectories(targetDir);
+        int restored = 0;
+        try (BufferedReader reader = openSnapshot(snapshotPath)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = fields(line);
+                if (!parts[0].equals("E")) {
+                    continue;
+                }
+                try (OutputStream out = Files.newOutputStream(IncrementalBackup.restorePath(targetDir, parts[1]))) {
+                    for (String hash : chunkList(parts[4])) {
+                        Files.copy(chunkPath(hash), out);
+                    }
+                }
+                restored++;
+            }
+        }
+        return restored;
+    }
+    
+    /**
+     * Keeps the newest {@code retain} snapshots (all when 0), then deletes
+     * chunks that are no longer referenced. Returns the number of chunks freed.
+     */
+    int prune(int retain) throws IOException {
+        synchronized (LOCK) {
+            List<String> snapshots = listSnapshots();
+            if (retain > 0) {
+                for (int i = 0; i < snapshots.size() - retain; i++) {
+                    Files.deleteIfExists(snapshotsDir.resolve(snapshots.get(i)));
+                }
+            }
+            return collectGarbage();
+        }
+    }
+    
+    private int collectGarbage() throws IOException {
+        Set<String> live = new HashSet<>();
+        for (String snapshot : listSnapshots()) {
+            try (BufferedReader reader = openSnapshot(snapshotsDir.resolve(snapshot))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = fields(line);
+                    if (parts.length == 5) {
+                        live.addAll(chunkList(parts[4]));
+                    }
+                }
+            }
+        }
+        
+        int freed = 0;
+        try (DirectoryStream<Path> fanout = Files.newDirectoryStream(chunksDir)) {
+            for (Path dir : fanout) {
+                try (DirectoryStream<Path> chunks = Files.newDirectoryStream(dir)) {
+                    for (Path chunk : chunks) {
+                        if (!live.contains(chunk.getFileName().toString())) {
+                            Files.delete(chunk);
+                            freed++;
+                        }
+                    }
+                }
+            }
+        }
+        return freed;
+    }
+    
+    private int storeChunks(byte[] content, List<String> hashes) throws IOException {
+        int stored = 0;
+        int start = 0;
+        while (start < content.length) {
+            int end = chunkEnd(content, start);
+            String hash = sha256(content, start, end - start);
+            Path chunkPath = chunkPath(hash);
+            if (!Files.exists(chunkPath)) {
+                Files.createDirectories(chunkPath.getParent());
+                Path temp = chunkPath.resolveSibling(hash + ".tmp");
+                try (OutputStream out = Files.newOutputStream(temp)) {
+                    out.write(content, start, end - start);
+                }
+                Files.move(temp, chunkPath, StandardCopyOption.ATOMIC_MOVE);
+                stored++;
+            }
+            hashes.add(hash);
+            start = end;
+        }
+        return stored;
+    }
+    
+    // Cut where the rolling hash has its low bits clear, within the size limits
+    private static int chunkEnd(byte[] content, int start) {
+        int limit = Math.min(content.length, start + MAX_CHUNK);
+        int i = Math.min(limit, start + MIN_CHUNK);
+        long hash = 0;
+        for (; i < limit; i++) {
+            hash = (hash << 1) + GEAR[content[i] & 0xFF];
+            if ((hash & CHUNK_MASK) == 0) {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+    
+    private Map<String, Snapshot> latestSnapshot() throws IOException {
+        Map<String, Snapshot> entries = new HashMap<>();
+        List<String> snapshots = listSnapshots();
+        if (snapshots.isEmpty()) {
+            return entries;
+        }
+        try (BufferedReader reader = openSnapshot(snapshotsDir.resolve(snapshots.get(snapshots.size() - 1)))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = fields(line);
+                if (parts[0].equals("E") && parts.length == 5) {
+                    entries.put(parts[1], new Snapshot(Long.parseLong(parts[2]), Long.parseLong(parts[3]), parts[4]));
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Warning: Could not read latest snapshot, rereading all entries: " + e.getMessage());
+            entries.clear();
+        }
+        return entries;
+    }
+    
+    private static BufferedReader openSnapshot(Path snapshotPath) throws IOException {
+        BufferedReader reader = Files.newBufferedReader(snapshotPath, StandardCharsets.UTF_8);
+        String header = reader.readLine();
+        if (!HEADER.equals(header) && !HEADER_V1.equals(header)) {
+            reader.close();
+            throw new IOException("Unsupported snapshot " + snapshotPath.getFileName());
+        }
+        return reader;
+    }
+    
+    // The fields of a snapshot line, with an unknown stored size filled in
+    // for v1 lines, which lack it. Chunk lists hold no tabs, so the count tells.
+    private static String[] fields(String line) {
+        String[] parts = line.split("\t", 5);
+        if (parts.length != 4) {
+            return parts;
+        }
+        return new String[] {parts[0], parts[1], parts[2], String.valueOf(UNKNOWN_SIZE), parts[3]};
+    }
+    
+    private static List<String> chunkList(String chunks) {
+        return chunks.isEmpty() ? Collections.emptyList() : Arrays.asList(chunks.split(","));
+    }
+    
+    private Path chunkPath(String hash) {
+        return chunksDir.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+    
+    private static String sha256(byte[] content, int offset, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(content, offset, length);
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
\ No newline at end of file
@@ -2,20 +2,32 @@ package com.diary;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
 
+/**
+ * Starts the interactive menu, or with {@code --serve [port]} the HTTP API
+ * on localhost (port 8080 by default) until interrupted.
+ */
 public class DiaryApp {
+    private static final int DEFAULT_PORT = 8080;
+    
     public static void main(String[] args) {
         System.out.println("=== Personal Diary Manager ===");
         System.out.println("Initializing application...");
         
         try {
             DiaryManager diaryManager = new DiaryManager();
+            if (args.length > 0 && args[0].equals("--serve")) {
+                serve(diaryManager, args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT);
+                return;
+            }
             Scanner scanner = new Scanner(System.in);
             DiaryMenu menu = new DiaryMenu(scanner, diaryManager);
             
             // Handle Ctrl+C gracefully
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
                 System.out.println("\n\nApplication is shutting down...");
+                diaryManager.shutdown();
                 diaryManager.saveConfiguration();
                 scanner.close();
             }));
@@ -32,4 +44,18 @@ public class DiaryApp {
             System.exit(1);
         }
     }
+    
+    private static void serve(DiaryManager diaryManager, int port) throws IOException, InterruptedException {
+        DiaryServer server = new DiaryServer(diaryManager, port);
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            System.out.println("\nServer is shutting down...");
+            server.stop();
+            diaryManager.shutdown();
+            diaryManager.saveConfiguration();
+            stopped.countDown();
+        }));
+        server.start();
+        stopped.await();
+    }
 }
\ No newline at end of file
@@ -0,0 +1,231 @@
+package com.diary;
+
+import java.io.*;
+import java.nio.file.attribute.FileTime;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+
+/**
+ * Sorted in-memory list of entry timestamps, so listing, counting and paging
+ * do not have to walk the entries directory.
+ *
+ * Timestamps are kept as epoch seconds (the local time read as UTC) in a
+ * sorted long array. Readers work on an immutable snapshot and never lock;
+ * writers take turns. New entries are usually the newest, so they are
+ * appended in place without copying, past the end readers can see.
+ */
+class DiaryCatalog {
+    private static final class Snapshot {
+        final long[] keys;
+        final int size;
+        
+        Snapshot(long[] keys, int size) {
+            this.keys = keys;
+            this.size = size;
+        }
+    }
+    
+    private final EntryStore store;
+    private final FileEntryStore watchedFiles;
+    private volatile Snapshot snapshot;
+    private volatile FileTime loadedAt;
+    
+    /**
+     * @param watchedFiles entry files whose directories' modification times signal
+     *                     changes made outside the app, or {@code null} if the
+     *                     store owns its data
+     */
+    DiaryCatalog(EntryStore store, FileEntryStore watchedFiles) throws IOException {
+        this.store = store;
+        this.watchedFiles = watchedFiles;
+        reload();
+    }
+    
+    static long keyOf(String filename) {
+        return DiaryEntry.epochSecondOf(filename);
+    }
+    
+    static long keyOf(LocalDateTime timestamp) {
+        return timestamp.toEpochSecond(ZoneOffset.UTC);
+    }
+    
+    static String filenameOf(long key) {
+        return DiaryEntry.filenameFor(LocalDateTime.ofEpochSecond(key, 0, ZoneOffset.UTC));
+    }
+    
+    synchronized void reload() throws IOException {
+        FileTime modified = lastModified();
+        List<String> filenames = store.list();
+        long[] keys = new long[Math.max(16, filenames.size())];
+        int size = 0;
+        for (String filename : filenames) {
+            try {
+                long key = keyOf(filename);
+                keys[size++] = key;
+            } catch (DateTimeParseException e) {
+                System.err.println("Warning: Ignoring entry with unexpected name " + filename);
+            }
+        }
+        Arrays.sort(keys, 0, size);
+        snapshot = new Snapshot(keys, size);
+        loadedAt = modified;
+    }
+    
+    /** Reloads when the entries directory changed since it was last read. */
+    void refreshIfStale() throws IOException {
+        if (watchedFiles != null && !lastModified().equals(loadedAt)) {
+            reload();
+        }
+    }
+    
+    synchronized void add(String filename) throws IOException {
+        long key = keyOf(filename);
+        Snapshot current = snapshot;
+        int index = Arrays.binarySearch(current.keys, 0, current.size, key);
+        if (index < 0) {
+            int insertAt = -index - 1;
+            long[] keys = current.keys;
+            if (insertAt < current.size || current.size == keys.length) {
+                keys = new long[current.size == keys.length ? keys.length * 2 : keys.length];
+                System.arraycopy(current.keys, 0, keys, 0, insertAt);
+                System.arraycopy(current.keys, insertAt, keys, insertAt + 1, current.size - insertAt);
+            }
+            keys[insertAt] = key;
+            snapshot = new Snapshot(keys, current.size + 1);
+        }
+        markFresh();
+    }
+    
+    /**
+     * Adds a batch in one pass. Imports are usually in order, so the batch
+     * tends to land after every existing key and is appended in place.
+     */
+    synchronized void addAll(Collection<String> filenames) throws IOException {
+        long[] added = new long[filenames.size()];
+        int count = 0;
+        for (String filename : filenames) {
+            added[count++] = keyOf(filename);
+        }
+        Arrays.sort(added);
+        
+        Snapshot current = snapshot;
+        long[] keys = current.keys;
+        int size = current.size;
+        boolean inPlace = size == 0 || added.length == 0 || added[0] > keys[size - 1];
+        long[] merged = inPlace && size + count <= keys.length ? keys
+            : new long[Math.max(keys.length, Integer.highestOneBit(Math.max(1, size + count)) << 1)];
+        int i = 0;
+        int j = 0;
+        int out = 0;
+        if (inPlace) {
+            if (merged != keys) {
+                System.arraycopy(keys, 0, merged, 0, size);
+            }
+            i = size;
+            out = size;
+        }
+        while (i < size || j < count) {
+            long next;
+            if (j == count || (i < size && keys[i] <= added[j])) {
+                next = keys[i++];
+            } else {
+                next = added[j++];
+            }
+            if (out == 0 || merged[out - 1] != next) {
+                merged[out++] = next;
+            }
+        }
+        snapshot = new Snapshot(merged, out);
+        markFresh();
+    }
+    
+    synchronized void remove(String filename) throws IOException {
+        long key;
+        try {
+            key = keyOf(filename);
+        } catch (DateTimeParseException e) {
+            return;
+        }
+        Snapshot current = snapshot;
+        int index = Arrays.binarySearch(current.keys, 0, current.size, key);
+        if (index >= 0) {
+            long[] keys = new long[current.keys.length];
+            System.arraycopy(current.keys, 0, keys, 0, index);
+            System.arraycopy(current.keys, index + 1, keys, index, current.size - index - 1);
+            snapshot = new Snapshot(keys, current.size - 1);
+        }
+        markFresh();
+    }
+    
+    int size() {
+        return snapshot.size;
+    }
+    
+    /** Every entry filename, newest first. */
+    List<String> all() {
+        return newest(snapshot, 0, Integer.MAX_VALUE);
+    }
+    
+    /** Entry filenames newest first, skipping {@code offset} of them. */
+    List<String> newest(int offset, int count) {
+        return newest(snapshot, offset, count);
+    }
+    
+    private static List<String> newest(Snapshot current, int offset, int count) {
+        int start = current.size - 1 - offset;
+        int end = Math.max(-1, start - count);
+        List<String> filenames = new ArrayList<>(Math.max(0, start - end));
+        for (int i = start; i > end; i--) {
+            filenames.add(filenameOf(current.keys[i]));
+        }
+        return filenames;
+    }
+    
+    /**
+     * Entry filenames with {@code from <= key < to}, newest first. Both ends
+     * are found by binary search, so only the entries returned cost anything.
+     */
+    List<String> between(long from, long to) {
+        return between(from, to, 0, Integer.MAX_VALUE);
+    }
+    
+    /** A page of {@link #between(long, long)}, skipping the {@code offset} newest. */
+    List<String> between(long from, long to, int offset, int count) {
+        Snapshot current = snapshot;
+        int start = lowerBound(current, from);
+        int end = Math.max(start, lowerBound(current, to));
+        int top = end - Math.min(offset, end - start);
+        int bottom = Math.max(start, top - count);
+        List<String> filenames = new ArrayList<>(top - bottom);
+        for (int i = top - 1; i >= bottom; i--) {
+            filenames.add(filenameOf(current.keys[i]));
+        }
+        return filenames;
+    }
+    
+    // Index of the first key >= key, or size if there is none
+    private static int lowerBound(Snapshot snapshot, long key) {
+        int low = 0;
+        int high = snapshot.size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (snapshot.keys[middle] < key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+    
+    // Our own writes touch the directory too; they are already reflected here
+    private void markFresh() throws IOException {
+        loadedAt = lastModified();
+    }
+    
+    private FileTime lastModified() throws IOException {
+        return watchedFiles == null ? null : watchedFiles.lastModified();
+    }
+}
\ No newline at end of file
@@ -1,17 +1,62 @@
 package com.diary;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
+import java.util.function.Function;
+import java.util.zip.CRC32;
 
+/**
+ * Application settings, stored in {@code diary_config.bin}: magic, format
+ * version, the fields in a fixed order, and a CRC32 of everything before it.
+ * Strings are an int byte count followed by UTF-8; version 1 files, which
+ * used {@code writeUTF} and so capped strings at 64 KB, are still read.
+ * Configs from older versions were Java-serialized to {@code diary_config.ser};
+ * that format is still read once and migrated.
+ */
 public class DiaryConfig implements Serializable {
     private static final long serialVersionUID = 1L;
-    private static final String CONFIG_FILE = "diary_config.ser";
+    private static final String CONFIG_FILE = "diary_config.bin";
+    private static final String LEGACY_CONFIG_FILE = "diary_config.ser";
+    private static final int MAGIC = 0x44434647; // "DCFG"
+    private static final int FORMAT_VERSION = 2;
+    private static final int UTF_FORMAT_VERSION = 1;
+    private static final Properties DEFAULT_SETTINGS = new Properties();
     
-    private String entriesDirectory;
-    private String backupDirectory;
+    static {
+        DEFAULT_SETTINGS.setProperty("autoBackup", "false");
+        DEFAULT_SETTINGS.setProperty("autoBackupInterval", "10");
+        DEFAULT_SETTINGS.setProperty("maxEntriesPerPage", "10");
+        DEFAULT_SETTINGS.setProperty("defaultEncoding", "UTF-8");
+        DEFAULT_SETTINGS.setProperty("storageMode", "files");
+        DEFAULT_SETTINGS.setProperty("entryLayout", "flat");
+        DEFAULT_SETTINGS.setProperty("entryCompression", "none");
+        DEFAULT_SETTINGS.setProperty("entryCompressionLevel", "1");
+        DEFAULT_SETTINGS.setProperty("segmentSizeMB", "16");
+        DEFAULT_SETTINGS.setProperty("readMode", "standard");
+        DEFAULT_SETTINGS.setProperty("searchThreads", "1");
+        DEFAULT_SETTINGS.setProperty("searchMode", "substring");
+        DEFAULT_SETTINGS.setProperty("searchResults", "10");
+        DEFAULT_SETTINGS.setProperty("cacheSizeMB", "8");
+        DEFAULT_SETTINGS.setProperty("backupMode", "full");
+        DEFAULT_SETTINGS.setProperty("backupCompression", "6");
+        DEFAULT_SETTINGS.setProperty("backupThreads", "0");
+        DEFAULT_SETTINGS.setProperty("backupRetention", "30");
+        DEFAULT_SETTINGS.setProperty("journalSync", "commit");
+        DEFAULT_SETTINGS.setProperty("journalSyncMillis", "50");
+        DEFAULT_SETTINGS.setProperty("metricsExport", "none");
+        DEFAULT_SETTINGS.setProperty("metricsFile", "diary_metrics.txt");
+        DEFAULT_SETTINGS.setProperty("metricsIntervalSeconds", "60");
+    }
+    
+    private volatile String entriesDirectory;
+    private volatile String backupDirectory;
     private List<String> recentSearches;
     private Properties settings;
+    private transient volatile DiarySettings typedSettings;
+    private transient List<DiarySettings.Listener> listeners;
     
     public DiaryConfig() {
         this.entriesDirectory = "entries";
@@ -22,33 +67,173 @@ public class DiaryConfig implements Serializable {
     }
     
     private void initializeSettings() {
-        settings.setProperty("autoBackup", "false");
-        settings.setProperty("maxEntriesPerPage", "10");
-        settings.setProperty("defaultEncoding", "UTF-8");
+        settings.putAll(DEFAULT_SETTINGS);
+        this.typedSettings = new DiarySettings(DEFAULT_SETTINGS::getProperty);
+        this.listeners = new ArrayList<>();
+    }
+    
+    // Values edited by hand or written by other versions fall back to their defaults
+    private void validateLoadedSettings() {
+        if (listeners == null) {
+            listeners = new ArrayList<>();
+        }
+        for (String key : settings.stringPropertyNames()) {
+            String value = settings.getProperty(key);
+            try {
+                checkSetting(key, name -> name.equals(key) ? value : DEFAULT_SETTINGS.getProperty(name));
+            } catch (IllegalArgumentException e) {
+                System.err.println("Warning: Ignoring setting " + key + "=" + value + ": " + e.getMessage());
+                settings.remove(key);
+            }
+        }
+        typedSettings = new DiarySettings(this::getSetting);
+    }
+    
+    private static DiarySettings checkSetting(String key, Function<String, String> values) {
+        if (!DEFAULT_SETTINGS.containsKey(key)) {
+            throw new IllegalArgumentException("Unknown setting " + key);
+        }
+        return new DiarySettings(values);
+    }
+    
+    /** Where the configuration is saved, relative to the working directory. */
+    static Path configPath() {
+        return Paths.get(CONFIG_FILE);
     }
     
-    public void saveConfig() {
-        try (ObjectOutputStream oos = new ObjectOutputStream(
-                new FileOutputStream(CONFIG_FILE))) {
-            oos.writeObject(this);
+    // Written to a temporary file in one go and renamed over the old config,
+    // so a crash leaves either the old or the new settings
+    public synchronized void saveConfig() {
+        Path configPath = configPath();
+        Path temp = configPath.resolveSibling(CONFIG_FILE + ".tmp");
+        try {
+            Files.write(temp, encode());
+            Files.move(temp, configPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
         } catch (IOException e) {
             System.err.println("Warning: Could not save configuration: " + e.getMessage());
         }
     }
     
     public static DiaryConfig loadConfig() {
-        Path configPath = Paths.get(CONFIG_FILE);
+        Path configPath = configPath();
         if (Files.exists(configPath)) {
-            try (ObjectInputStream ois = new ObjectInputStream(
-                    new FileInputStream(CONFIG_FILE))) {
-                return (DiaryConfig) ois.readObject();
-            } catch (IOException | ClassNotFoundException e) {
+            try {
+                return decode(Files.readAllBytes(configPath));
+            } catch (IOException e) {
                 System.err.println("Warning: Could not load configuration, using defaults: " + e.getMessage());
+                return new DiaryConfig();
             }
         }
+        Path legacyPath = Paths.get(LEGACY_CONFIG_FILE);
+        if (Files.exists(legacyPath)) {
+            return migrateLegacyConfig(legacyPath);
+        }
         return new DiaryConfig();
     }
     
+    // Reads the old serialized config, saves it in the new format and keeps the original as .bak
+    private static DiaryConfig migrateLegacyConfig(Path legacyPath) {
+        DiaryConfig config;
+        try (ObjectInputStream ois = new ObjectInputStream(
+                new BufferedInputStream(Files.newInputStream(legacyPath)))) {
+            config = (DiaryConfig) ois.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            System.err.println("Warning: Could not load configuration, using defaults: " + e.getMessage());
+            return new DiaryConfig();
+        }
+        if (config.recentSearches == null) {
+            config.recentSearches = new ArrayList<>();
+        }
+        if (config.settings == null) {
+            config.settings = new Properties();
+        }
+        config.validateLoadedSettings();
+        config.saveConfig();
+        try {
+            Files.move(legacyPath, legacyPath.resolveSibling(LEGACY_CONFIG_FILE + ".bak"),
+                StandardCopyOption.REPLACE_EXISTING);
+            System.out.println("Migrated configuration to " + CONFIG_FILE);
+        } catch (IOException e) {
+            System.err.println("Warning: Could not rename " + LEGACY_CONFIG_FILE + ": " + e.getMessage());
+        }
+        return config;
+    }
+    
+    private byte[] encode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeShort(FORMAT_VERSION);
+        writeString(out, entriesDirectory);
+        writeString(out, backupDirectory);
+        out.writeShort(recentSearches.size());
+        for (String search : recentSearches) {
+            writeString(out, search);
+        }
+        Set<String> keys = settings.stringPropertyNames();
+        out.writeShort(keys.size());
+        for (String key : keys) {
+            writeString(out, key);
+            writeString(out, settings.getProperty(key));
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+        return bytes.toByteArray();
+    }
+    
+    private static DiaryConfig decode(byte[] data) throws IOException {
+        if (data.length < 10) {
+            throw new IOException("Configuration file is truncated");
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a diary configuration file");
+        }
+        int version = in.readUnsignedShort();
+        if (version != FORMAT_VERSION && version != UTF_FORMAT_VERSION) {
+            throw new IOException("Unsupported configuration format version " + version);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - 4);
+        if (ByteBuffer.wrap(data, data.length - 4, 4).getInt() != (int) crc.getValue()) {
+            throw new IOException("Configuration file is corrupt");
+        }
+        
+        DiaryConfig config = new DiaryConfig();
+        config.entriesDirectory = readString(in, version);
+        config.backupDirectory = readString(in, version);
+        int searches = in.readUnsignedShort();
+        for (int i = 0; i < searches; i++) {
+            config.recentSearches.add(readString(in, version));
+        }
+        int settings = in.readUnsignedShort();
+        for (int i = 0; i < settings; i++) {
+            config.settings.setProperty(readString(in, version), readString(in, version));
+        }
+        config.validateLoadedSettings();
+        return config;
+    }
+    
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+    
+    private static String readString(DataInputStream in, int version) throws IOException {
+        if (version == UTF_FORMAT_VERSION) {
+            return in.readUTF();
+        }
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Configuration file is corrupt");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
     // Getters and Setters
     public String getEntriesDirectory() { return entriesDirectory; }
     public void setEntriesDirectory(String entriesDirectory) { 
@@ -60,9 +245,9 @@ public class DiaryConfig implements Serializable {
         this.backupDirectory = backupDirectory; 
     }
     
-    public List<String> getRecentSearches() { return recentSearches; }
+    public synchronized List<String> getRecentSearches() { return new ArrayList<>(recentSearches); }
     
-    public void addSearch(String keyword) {
+    public synchronized void addSearch(String keyword) {
         recentSearches.remove(keyword);
         recentSearches.add(0, keyword);
         if (recentSearches.size() > 10) {
@@ -70,11 +255,44 @@ public class DiaryConfig implements Serializable {
         }
     }
     
+    // Configs saved by older versions lack newer keys, so fall back to the defaults
     public String getSetting(String key) {
-        return settings.getProperty(key);
+        return settings.getProperty(key, DEFAULT_SETTINGS.getProperty(key));
     }
     
+    /**
+     * Validates and stores a setting, then notifies the listeners.
+     *
+     * @throws IllegalArgumentException if the key is unknown or the value invalid
+     */
     public void setSetting(String key, String value) {
-        settings.setProperty(key, value);
+        DiarySettings updated;
+        List<DiarySettings.Listener> current;
+        // Checked and built under the lock, so a concurrent change to another
+        // setting is not lost from the typed view
+        synchronized (this) {
+            updated = checkSetting(key, name -> name.equals(key) ? value : getSetting(name));
+            settings.setProperty(key, value.trim());
+            typedSettings = updated;
+            current = new ArrayList<>(listeners);
+        }
+        for (DiarySettings.Listener listener : current) {
+            listener.settingChanged(key, updated);
+        }
+    }
+    
+    /** Typed view of the current settings; cheap enough to call on every use. */
+    DiarySettings getSettings() {
+        return typedSettings;
+    }
+    
+    synchronized void addSettingsListener(DiarySettings.Listener listener) {
+        listeners.add(listener);
+    }
+    
+    public Set<String> getSettingNames() {
+        Set<String> names = new TreeSet<>(DEFAULT_SETTINGS.stringPropertyNames());
+        names.addAll(settings.stringPropertyNames());
+        return names;
     }
 }
\ No newline at end of file
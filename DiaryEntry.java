@@ -2,7 +2,11 @@ package com.diary;
 
 import java.io.Serializable;
 import java.time.LocalDateTime;
+import java.time.Month;
+import java.time.Year;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.Objects;
 
 public class DiaryEntry implements Serializable {
@@ -11,6 +15,13 @@ public class DiaryEntry implements Serializable {
         DateTimeFormatter.ofPattern("yyyy_MM_dd_HH_mm_ss");
     private static final DateTimeFormatter DISPLAY_FORMATTER = 
         DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    // diary_yyyy_MM_dd_HH_mm_ss.txt: every field sits at a fixed offset
+    private static final int FILENAME_LENGTH = 29;
+    private static final String FILENAME_PREFIX = "diary_";
+    private static final String FILENAME_SUFFIX = ".txt";
+    // yyyy is the year of the era, so year 0 would come back as 1
+    private static final int MIN_YEAR = 1;
+    private static final int MAX_YEAR = 9999;
     
     private final LocalDateTime timestamp;
     private String content;
@@ -22,14 +33,87 @@ public class DiaryEntry implements Serializable {
         this.filename = generateFilename();
     }
     
+    /** @throws IllegalArgumentException if the year does not fit the four digits of a filename */
     public DiaryEntry(LocalDateTime timestamp, String content) {
+        if (timestamp.getYear() < MIN_YEAR || timestamp.getYear() > MAX_YEAR) {
+            throw new IllegalArgumentException("Year " + timestamp.getYear() + " is outside "
+                + MIN_YEAR + "-" + MAX_YEAR);
+        }
         this.timestamp = timestamp;
         this.content = content;
         this.filename = generateFilename();
     }
     
     private String generateFilename() {
-        return "diary_" + timestamp.format(FILENAME_FORMATTER) + ".txt";
+        return filenameFor(timestamp);
+    }
+    
+    static String filenameFor(LocalDateTime timestamp) {
+        return FILENAME_PREFIX + timestamp.format(FILENAME_FORMATTER) + FILENAME_SUFFIX;
+    }
+    
+    /** The timestamp encoded in a name made by {@link #filenameFor}. */
+    static LocalDateTime timestampOf(String filename) {
+        return LocalDateTime.ofEpochSecond(epochSecondOf(filename), 0, ZoneOffset.UTC);
+    }
+    
+    /**
+     * The timestamp encoded in a name made by {@link #filenameFor}, as epoch
+     * seconds with the local time read as UTC. The digits are decoded in
+     * place, so this allocates nothing unless the name is invalid.
+     */
+    static long epochSecondOf(String filename) {
+        if (filename.length() != FILENAME_LENGTH || !filename.startsWith(FILENAME_PREFIX)
+                || !filename.endsWith(FILENAME_SUFFIX)) {
+            throw invalidFilename(filename, 0);
+        }
+        for (int separator = 10; separator <= 22; separator += 3) {
+            if (filename.charAt(separator) != '_') {
+                throw invalidFilename(filename, separator);
+            }
+        }
+        int year = digits(filename, 6, 4);
+        int month = digits(filename, 11, 2);
+        int day = digits(filename, 14, 2);
+        int hour = digits(filename, 17, 2);
+        int minute = digits(filename, 20, 2);
+        int second = digits(filename, 23, 2);
+        if (month < 1 || month > 12) {
+            throw invalidFilename(filename, 11);
+        }
+        if (day < 1 || day > Month.of(month).length(Year.isLeap(year))) {
+            throw invalidFilename(filename, 14);
+        }
+        if (hour > 23 || minute > 59 || second > 59) {
+            throw invalidFilename(filename, 17);
+        }
+        return epochDay(year, month, day) * 86_400L + hour * 3600 + minute * 60 + second;
+    }
+    
+    private static int digits(String text, int offset, int count) {
+        int value = 0;
+        for (int i = offset; i < offset + count; i++) {
+            int digit = text.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw invalidFilename(text, i);
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+    
+    // Days since 1970-01-01 in the proleptic Gregorian calendar, for years 0-9999
+    private static long epochDay(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = Math.floorDiv(y, 400);
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146_097L + dayOfEra - 719_468;
+    }
+    
+    private static DateTimeParseException invalidFilename(String filename, int index) {
+        return new DateTimeParseException("Not a diary entry filename: " + filename, filename, index);
     }
     
     // Getters
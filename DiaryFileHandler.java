@@ -1,21 +1,324 @@
 package com.diary;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.file.*;
 import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.zip.*;
 
-public class DiaryFileHandler {
+public class DiaryFileHandler implements Closeable {
     private final Path entriesDir;
     private final Path backupDir;
+    // Compressed entries need a trained dictionary once the diary has this many
+    private static final int DICTIONARY_MIN_ENTRIES = 50;
+    private static final int DICTIONARY_SAMPLES = 1000;
+    private static final int RECOMPRESS_BATCH_SIZE = 1000;
+    private static final int LOCK_STRIPES = 64;
+    
+    private final EntryStore store;
+    private final CompressedEntryStore compression;
+    // The entry files when not in segment storage
+    private final FileEntryStore files;
+    private final DiaryCatalog catalog;
+    private final DiaryIndex index;
+    // Writers of one entry take turns; see StripedLock
+    private final StripedLock entryLocks = new StripedLock(LOCK_STRIPES);
+    private final DirectoryLock directoryLock;
+    private final boolean mappedReads;
+    private final String backupMode;
+    private final int backupCompression;
+    private final int backupThreads;
+    private final int backupRetention;
+    private final ForkJoinPool searchPool;
+    private final DiaryMetrics metrics;
+    private EntryLayoutMigration layoutMigration;
+    // Watches the entry files for outside changes; null in segment storage
+    private final EntryWatcher watcher;
+    // Versions of entry files already reflected in the catalog and index,
+    // mostly our own writes, whose watch events need no work
+    private final Map<String, Long> knownVersions = new ConcurrentHashMap<>();
+    private volatile EntryWatcher.Listener changeListener;
     
     public DiaryFileHandler(String entriesDir, String backupDir) throws IOException {
-        this.entriesDir = Paths.get(entriesDir);
-        this.backupDir = Paths.get(backupDir);
+        this(configFor(entriesDir, backupDir));
+    }
+    
+    public DiaryFileHandler(DiaryConfig config) throws IOException {
+        this(config, new DiaryMetrics());
+    }
+    
+    /** Records bytes and files read and written, and index use, into the given metrics. */
+    DiaryFileHandler(DiaryConfig config, DiaryMetrics metrics) throws IOException {
+        this.metrics = metrics;
+        this.entriesDir = Paths.get(config.getEntriesDirectory());
+        this.backupDir = Paths.get(config.getBackupDirectory());
         createDirectories();
+        // Held until close, so no other copy of the app writes here meanwhile
+        this.directoryLock = DirectoryLock.acquire(entriesDir);
+        try {
+            DiarySettings settings = config.getSettings();
+            this.mappedReads = settings.isMappedReads();
+            this.backupMode = settings.getBackupMode();
+            this.backupCompression = settings.getBackupCompression();
+            this.backupThreads = settings.getBackupThreads();
+            this.backupRetention = settings.getBackupRetention();
+            this.searchPool = createSearchPool(settings.getSearchThreads());
+            EntryStore backing = openStore(settings);
+            this.compression = new CompressedEntryStore(backing, entriesDir,
+                settings.isEntryCompression() ? settings.getEntryCompressionLevel() : -1, metrics);
+            this.store = openJournal(compression, settings);
+            this.files = backing instanceof FileEntryStore ? (FileEntryStore) backing : null;
+            // Registered first, so changes made while the catalog and index
+            // catch up below are queued and delivered once it starts
+            this.watcher = openWatcher();
+            // Without a watcher the catalog falls back to polling directory times
+            this.catalog = new DiaryCatalog(store, watcher == null ? files : null);
+            // Opening reconciles the index with every entry's version, which
+            // picks up whatever changed while the app was closed
+            this.index = DiaryIndex.open(this.entriesDir, listEntries(), indexSource());
+            if (store instanceof JournaledEntryStore) {
+                reindex(((JournaledEntryStore) store).getRecovered());
+            }
+            trainDictionaryIfDue();
+            // Picks up a migration the last session did not finish
+            boolean misplaced = files != null && files.hasMisplaced();
+            if (watcher != null) {
+                watcher.start();
+            }
+            if (misplaced) {
+                startLayoutMigration();
+            }
+        } catch (IOException | RuntimeException e) {
+            directoryLock.close();
+            throw e;
+        }
+    }
+    
+    // The index reads entries through the handler, which holds them meanwhile
+    private DiaryIndex.ContentSource indexSource() {
+        return new DiaryIndex.ContentSource() {
+            @Override
+            public String read(String filename) throws IOException {
+                return readEntry(filename);
+            }
+            
+            @Override
+            public long version(String filename) throws IOException {
+                return store.version(filename);
+            }
+        };
+    }
+    
+    private EntryWatcher openWatcher() {
+        if (files == null) {
+            return null;
+        }
+        try {
+            return new EntryWatcher(entriesDir, new EntryWatcher.Listener() {
+                @Override
+                public void entriesChanged(Set<String> filenames) {
+                    applyOutsideChanges(filenames);
+                }
+                
+                @Override
+                public void rescanNeeded() {
+                    rescan();
+                }
+            });
+        } catch (IOException | UnsupportedOperationException e) {
+            System.err.println("Warning: Cannot watch entries for outside changes: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /** Told about entries changed outside the app, after the catalog and index have caught up. */
+    void setChangeListener(EntryWatcher.Listener listener) {
+        this.changeListener = listener;
+    }
+    
+    // Brings the catalog and index up to date with entries another program changed
+    private void applyOutsideChanges(Set<String> filenames) {
+        try {
+            metrics.time("applyOutsideChanges", () -> {
+                StripedLock.Held held = entryLocks.lock(filenames);
+                try {
+                    Map<String, String> updated = new LinkedHashMap<>();
+                    List<String> removed = new ArrayList<>();
+                    for (String filename : filenames) {
+                        try {
+                            DiaryEntry.epochSecondOf(filename);
+                        } catch (DateTimeParseException e) {
+                            continue; // Not an entry after all
+                        }
+                        try {
+                            long version = files.version(filename);
+                            Long known = knownVersions.get(filename);
+                            if (known == null || known != version) {
+                                updated.put(filename, readEntry(filename));
+                                knownVersions.put(filename, version);
+                            }
+                        } catch (FileNotFoundException e) {
+                            knownVersions.remove(filename);
+                            removed.add(filename);
+                        }
+                    }
+                    for (String filename : removed) {
+                        catalog.remove(filename);
+                        index.remove(filename);
+                    }
+                    catalog.addAll(updated.keySet());
+                    index.updateAll(updated);
+                    EntryWatcher.Listener listener = changeListener;
+                    if (listener != null && !(updated.isEmpty() && removed.isEmpty())) {
+                        Set<String> changed = new LinkedHashSet<>(updated.keySet());
+                        changed.addAll(removed);
+                        listener.entriesChanged(changed);
+                    }
+                } finally {
+                    held.release();
+                }
+            });
+        } catch (IOException e) {
+            System.err.println("Warning: Could not apply outside changes, rescanning: " + e.getMessage());
+            rescan();
+        }
+    }
+    
+    // Compares everything again after watch events were lost
+    private void rescan() {
+        try {
+            metrics.time("rescanEntries", () -> {
+                StripedLock.Held held = entryLocks.lockAll();
+                try {
+                    // Versions rather than file times, which need not move
+                    // forward when a sync tool restores an older copy
+                    catalog.reload();
+                    List<String> filenames = catalog.all();
+                    index.reconcile(filenames);
+                    knownVersions.keySet().retainAll(new HashSet<>(filenames));
+                } finally {
+                    held.release();
+                }
+            });
+            EntryWatcher.Listener listener = changeListener;
+            if (listener != null) {
+                listener.rescanNeeded();
+            }
+        } catch (IOException e) {
+            System.err.println("Warning: Could not rescan entries: " + e.getMessage());
+        }
+    }
+    
+    // Our own writes also raise watch events; this records what they will
+    // find. Called with the entries still locked, so events wait for it.
+    private void written(Collection<String> filenames) throws IOException {
+        if (watcher != null) {
+            for (String filename : filenames) {
+                known(filename);
+            }
+        }
+    }
+    
+    private void known(String filename) throws IOException {
+        try {
+            knownVersions.put(filename, files.version(filename));
+        } catch (FileNotFoundException e) {
+            knownVersions.remove(filename);
+        }
+    }
+    
+    // Checked at open and after each save, outside the entry locks since
+    // training reads entries; the first writer past the threshold trains
+    private void trainDictionaryIfDue() throws IOException {
+        if (!compression.isCompressing() || compression.hasDictionary() || catalog.size() < DICTIONARY_MIN_ENTRIES) {
+            return;
+        }
+        synchronized (compression) {
+            if (!compression.hasDictionary()) {
+                trainDictionary();
+            }
+        }
+    }
+    
+    private void trainDictionary() throws IOException {
+        List<String> samples = new ArrayList<>();
+        for (String filename : catalog.newest(0, DICTIONARY_SAMPLES)) {
+            try {
+                samples.add(readEntry(filename));
+            } catch (FileNotFoundException e) {
+                // Deleted meanwhile
+            }
+        }
+        compression.trainDictionary(samples);
+    }
+    
+    /**
+     * Rewrites every entry in the current compression setting, so turning
+     * compression on or off applies to existing entries too, and returns a
+     * summary of the size on disk before and after.
+     */
+    public String recompressEntries() throws IOException {
+        long before = 0;
+        long storedBefore = compression.getStoredBytes();
+        long original = 0;
+        long count = 0;
+        List<String> filenames = listEntries();
+        for (int start = 0; start < filenames.size(); start += RECOMPRESS_BATCH_SIZE) {
+            List<String> names = filenames.subList(start, Math.min(filenames.size(), start + RECOMPRESS_BATCH_SIZE));
+            Map<String, byte[]> batch = new LinkedHashMap<>();
+            StripedLock.Held held = entryLocks.lock(names);
+            try {
+                for (String filename : names) {
+                    try {
+                        byte[] stored = compression.readStored(filename);
+                        byte[] content = compression.decode(filename, stored);
+                        before += stored.length;
+                        original += content.length;
+                        batch.put(filename, content);
+                    } catch (FileNotFoundException e) {
+                        // Deleted meanwhile
+                    }
+                }
+                try {
+                    store.writeAll(batch);
+                } finally {
+                    written(batch.keySet());
+                }
+            } finally {
+                held.release();
+            }
+            count += batch.size();
+        }
+        long after = compression.getStoredBytes() - storedBefore;
+        return String.format("Rewrote %d entries: %d KB of text, %d KB on disk before, %d KB after",
+            count, original / 1024, before / 1024, after / 1024);
+    }
+    
+    public String getCompressionStatus() {
+        return compression.getStatistics();
+    }
+    
+    private static DiaryConfig configFor(String entriesDir, String backupDir) {
+        DiaryConfig config = new DiaryConfig();
+        config.setEntriesDirectory(entriesDir);
+        config.setBackupDirectory(backupDir);
+        return config;
+    }
+    
+    // 1 keeps search on the calling thread, 0 uses every available core
+    private static ForkJoinPool createSearchPool(int threads) {
+        if (threads == 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        return threads > 1 ? new ForkJoinPool(threads) : null;
     }
     
     private void createDirectories() throws IOException {
@@ -23,82 +326,441 @@ public class DiaryFileHandler {
         Files.createDirectories(backupDir);
     }
     
+    private EntryStore openStore(DiarySettings settings) throws IOException {
+        FileEntryStore files = new FileEntryStore(entriesDir, settings.isShardedLayout());
+        if (!settings.isSegmentStorage()) {
+            if (SegmentEntryStore.exists(entriesDir)) {
+                try (SegmentEntryStore segments = new SegmentEntryStore(entriesDir, Long.MAX_VALUE)) {
+                    migrate(segments, files);
+                }
+                SegmentEntryStore.deleteAll(entriesDir);
+            }
+            return files;
+        }
+        
+        SegmentEntryStore segments = new SegmentEntryStore(entriesDir, settings.getSegmentSizeBytes());
+        if (files.count() > 0) {
+            migrate(files, segments);
+        }
+        return segments;
+    }
+    
+    // "commit" waits for the fsync on every save, "interval" syncs in the background
+    private EntryStore openJournal(EntryStore backing, DiarySettings settings) throws IOException {
+        String sync = settings.getJournalSync();
+        if ("none".equals(sync)) {
+            Files.deleteIfExists(entriesDir.resolve(JournaledEntryStore.JOURNAL_FILE));
+            return backing;
+        }
+        long intervalMillis = "interval".equals(sync) ? settings.getJournalSyncMillis() : 0;
+        return new JournaledEntryStore(backing, entriesDir, intervalMillis);
+    }
+    
+    // Entries replayed from the journal may have changed after they were indexed
+    private void reindex(Set<String> filenames) throws IOException {
+        for (String filename : filenames) {
+            try {
+                index.update(filename, readEntry(filename));
+            } catch (FileNotFoundException e) {
+                index.remove(filename);
+            }
+        }
+    }
+    
+    // Moves every entry from one storage mode to the other after a mode switch
+    private static void migrate(EntryStore from, EntryStore to) throws IOException {
+        List<String> entries = from.list();
+        System.out.println("Migrating " + entries.size() + " entries to the new storage mode...");
+        for (String entry : entries) {
+            to.write(entry, from.read(entry));
+        }
+        if (from instanceof FileEntryStore) {
+            for (String entry : entries) {
+                from.delete(entry);
+            }
+        }
+    }
+    
     public void saveEntry(DiaryEntry entry) throws IOException {
-        Path filePath = entriesDir.resolve(entry.getFilename());
-        try (BufferedWriter writer = Files.newBufferedWriter(filePath, StandardCharsets.UTF_8)) {
-            writer.write(entry.getContent());
+        StripedLock.Held held = entryLocks.lock(entry.getFilename());
+        try {
+            write(entry);
+        } finally {
+            held.release();
         }
+        trainDictionaryIfDue();
     }
     
-    public String readEntry(String filename) throws IOException {
-        Path filePath = entriesDir.resolve(filename);
-        if (!Files.exists(filePath)) {
-            throw new FileNotFoundException("Entry not found: " + filename);
+    /**
+     * Saves the entry unless one already exists at its timestamp, checking
+     * and writing while holding the entry. Returns whether it was saved.
+     */
+    public boolean createEntry(DiaryEntry entry) throws IOException {
+        StripedLock.Held held = entryLocks.lock(entry.getFilename());
+        try {
+            try {
+                store.version(entry.getFilename());
+                return false;
+            } catch (FileNotFoundException e) {
+                // Free, as it should be
+            }
+            write(entry);
+        } finally {
+            held.release();
         }
-        return Files.readString(filePath, StandardCharsets.UTF_8);
+        trainDictionaryIfDue();
+        return true;
     }
     
-    public List<String> listEntries() throws IOException {
-        List<String> entries = new ArrayList<>();
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(entriesDir, "diary_*.txt")) {
-            for (Path entry : stream) {
-                entries.add(entry.getFileName().toString());
+    // Callers hold the entry
+    private void write(DiaryEntry entry) throws IOException {
+        byte[] content = entry.getContent().getBytes(StandardCharsets.UTF_8);
+        try {
+            store.write(entry.getFilename(), content);
+        } finally {
+            written(List.of(entry.getFilename()));
+        }
+        metrics.filesWritten(1, content.length);
+        catalog.add(entry.getFilename());
+        index.update(entry.getFilename(), entry.getContent());
+    }
+    
+    /**
+     * Saves a batch of entries with one durable write and updates the catalog
+     * and index once for the whole batch, used for bulk imports. Returns the
+     * number of entries written; of several with the same timestamp the last
+     * one wins.
+     */
+    public int saveEntries(List<DiaryEntry> entries) throws IOException {
+        Map<String, byte[]> contents = new LinkedHashMap<>();
+        Map<String, String> texts = new LinkedHashMap<>();
+        long bytes = 0;
+        for (DiaryEntry entry : entries) {
+            byte[] content = entry.getContent().getBytes(StandardCharsets.UTF_8);
+            contents.put(entry.getFilename(), content);
+            texts.put(entry.getFilename(), entry.getContent());
+            bytes += content.length;
+        }
+        StripedLock.Held held = entryLocks.lock(contents.keySet());
+        try {
+            try {
+                store.writeAll(contents);
+            } finally {
+                written(contents.keySet());
             }
+            metrics.filesWritten(contents.size(), bytes);
+            catalog.addAll(texts.keySet());
+            index.updateAll(texts);
+        } finally {
+            held.release();
         }
-        entries.sort(Collections.reverseOrder());
-        return entries;
+        trainDictionaryIfDue();
+        return contents.size();
+    }
+    
+    /**
+     * Saves an edited entry in place of the old one. With the journal enabled
+     * both happen together, so a crash cannot leave the edit half done.
+     */
+    public void replaceEntry(String oldFilename, DiaryEntry entry) throws IOException {
+        byte[] content = entry.getContent().getBytes(StandardCharsets.UTF_8);
+        List<String> filenames = List.of(oldFilename, entry.getFilename());
+        StripedLock.Held held = entryLocks.lock(filenames);
+        try {
+            try {
+                store.replace(oldFilename, entry.getFilename(), content);
+            } finally {
+                written(filenames);
+            }
+            metrics.filesWritten(1, content.length);
+            if (!oldFilename.equals(entry.getFilename())) {
+                metrics.fileDeleted();
+                catalog.remove(oldFilename);
+                index.remove(oldFilename);
+            }
+            catalog.add(entry.getFilename());
+            index.update(entry.getFilename(), entry.getContent());
+        } finally {
+            held.release();
+        }
+    }
+    
+    // Holding the entry keeps writers from truncating the file mid-read,
+    // which matters most for mapped reads
+    public String readEntry(String filename) throws IOException {
+        StripedLock.Held held = entryLocks.read(filename);
+        try {
+            if (mappedReads) {
+                ByteBuffer content = store.map(filename);
+                metrics.fileRead(content.remaining());
+                return KeywordMatcher.decode(content);
+            }
+            byte[] content = store.read(filename);
+            metrics.fileRead(content.length);
+            return new String(content, StandardCharsets.UTF_8);
+        } finally {
+            held.release();
+        }
+    }
+    
+    public List<String> listEntries() throws IOException {
+        catalog.refreshIfStale();
+        return catalog.all();
+    }
+    
+    public List<String> listEntries(int offset, int count) throws IOException {
+        catalog.refreshIfStale();
+        return catalog.newest(offset, count);
+    }
+    
+    /**
+     * Entries written in {@code [from, to)}, newest first. A null bound
+     * leaves that end of the range open.
+     */
+    public List<String> listEntriesBetween(LocalDateTime from, LocalDateTime to) throws IOException {
+        catalog.refreshIfStale();
+        return catalog.between(lowerKey(from), upperKey(to));
+    }
+    
+    /** A page of {@link #listEntriesBetween(LocalDateTime, LocalDateTime)}. */
+    public List<String> listEntriesBetween(LocalDateTime from, LocalDateTime to, int offset, int count) throws IOException {
+        catalog.refreshIfStale();
+        return catalog.between(lowerKey(from), upperKey(to), offset, count);
     }
     
     public List<DiaryEntry> searchEntries(String keyword) throws IOException {
+        return matchAll(candidateEntries(keyword), new KeywordMatcher(keyword));
+    }
+    
+    /** Substring search limited to entries written in {@code [from, to)}. */
+    public List<DiaryEntry> searchEntries(String keyword, LocalDateTime from, LocalDateTime to) throws IOException {
+        return matchEntries(searchCandidates(keyword, from, to), keyword);
+    }
+    
+    /**
+     * Entries written in {@code [from, to)} that may contain the keyword,
+     * newest first; only their names, so nothing is read yet.
+     */
+    public List<String> searchCandidates(String keyword, LocalDateTime from, LocalDateTime to) throws IOException {
+        List<String> inRange = listEntriesBetween(from, to);
+        Set<String> candidates = index.candidates(keyword);
+        metrics.indexLookup(candidates != null);
+        List<String> filenames;
+        if (candidates == null) {
+            filenames = inRange;
+        } else if (candidates.size() < inRange.size()) {
+            filenames = new ArrayList<>(candidates);
+            filenames.removeIf(inRange(from, to).negate());
+            filenames.sort(Collections.reverseOrder());
+        } else {
+            filenames = new ArrayList<>(inRange);
+            filenames.retainAll(candidates);
+        }
+        return filenames;
+    }
+    
+    /** The given entries that contain the keyword, in the same order. */
+    public List<DiaryEntry> matchEntries(List<String> filenames, String keyword) {
+        return matchAll(filenames, new KeywordMatcher(keyword));
+    }
+    
+    private List<DiaryEntry> matchAll(List<String> filenames, KeywordMatcher matcher) {
         List<DiaryEntry> results = new ArrayList<>();
-        List<String> filenames = listEntries();
+        if (searchPool != null && filenames.size() > 1) {
+            // Each worker fills its own slots, so hits keep the newest-first order
+            DiaryEntry[] hits = new DiaryEntry[filenames.size()];
+            searchPool.invoke(new SearchTask(filenames, matcher, hits, 0, hits.length));
+            for (DiaryEntry hit : hits) {
+                if (hit != null) {
+                    results.add(hit);
+                }
+            }
+            return results;
+        }
         
         for (String filename : filenames) {
-            try {
-                String content = readEntry(filename);
-                if (content.toLowerCase().contains(keyword.toLowerCase())) {
-                    LocalDateTime timestamp = extractTimestampFromFilename(filename);
-                    results.add(new DiaryEntry(timestamp, content));
-                }
-            } catch (IOException e) {
-                System.err.println("Warning: Could not read file " + filename + ": " + e.getMessage());
+            DiaryEntry hit = matchEntry(filename, matcher);
+            if (hit != null) {
+                results.add(hit);
             }
         }
         
         return results;
     }
     
-    LocalDateTime extractTimestampFromFilename(String filename) {
-        String timestampStr = filename
-            .replace("diary_", "")
-            .replace(".txt", "");
+    /**
+     * Ranked search over the index: returns at most {@code limit} entries,
+     * best match first. Only those entries are read.
+     */
+    public List<DiaryEntry> searchRanked(String query, int limit) throws IOException {
+        return searchRanked(query, limit, null, null);
+    }
+    
+    /** Ranked search limited to entries written in {@code [from, to)}. */
+    public List<DiaryEntry> searchRanked(String query, int limit, LocalDateTime from, LocalDateTime to)
+            throws IOException {
+        List<DiaryEntry> results = new ArrayList<>();
+        metrics.indexLookup(true);
+        for (DiaryIndex.Hit hit : index.search(SearchQuery.parse(query), limit, inRange(from, to))) {
+            try {
+                results.add(new DiaryEntry(extractTimestampFromFilename(hit.filename), readEntry(hit.filename)));
+            } catch (FileNotFoundException e) {
+                // Deleted since the search ran
+            }
+        }
+        return results;
+    }
+    
+    private static Predicate<String> inRange(LocalDateTime from, LocalDateTime to) {
+        long lower = lowerKey(from);
+        long upper = upperKey(to);
+        return filename -> {
+            long key;
+            try {
+                key = DiaryCatalog.keyOf(filename);
+            } catch (DateTimeParseException e) {
+                return false;
+            }
+            return key >= lower && key < upper;
+        };
+    }
+    
+    private static long lowerKey(LocalDateTime from) {
+        return from == null ? Long.MIN_VALUE : DiaryCatalog.keyOf(from);
+    }
+    
+    private static long upperKey(LocalDateTime to) {
+        return to == null ? Long.MAX_VALUE : DiaryCatalog.keyOf(to);
+    }
+    
+    private DiaryEntry matchEntry(String filename, KeywordMatcher matcher) {
+        try {
+            String content = matchingContent(filename, matcher);
+            if (content != null) {
+                LocalDateTime timestamp = extractTimestampFromFilename(filename);
+                return new DiaryEntry(timestamp, content);
+            }
+        } catch (FileNotFoundException e) {
+            // Deleted since the search listed it
+        } catch (IOException e) {
+            System.err.println("Warning: Could not read file " + filename + ": " + e.getMessage());
+        }
+        return null;
+    }
+    
+    private class SearchTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private static final int FILES_PER_TASK = 32;
+        
+        private final List<String> filenames;
+        private final KeywordMatcher matcher;
+        private final DiaryEntry[] hits;
+        private final int from;
+        private final int to;
         
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy_MM_dd_HH_mm_ss");
-        return LocalDateTime.parse(timestampStr, formatter);
+        SearchTask(List<String> filenames, KeywordMatcher matcher, DiaryEntry[] hits, int from, int to) {
+            this.filenames = filenames;
+            this.matcher = matcher;
+            this.hits = hits;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected void compute() {
+            if (to - from <= FILES_PER_TASK) {
+                for (int i = from; i < to; i++) {
+                    hits[i] = matchEntry(filenames.get(i), matcher);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new SearchTask(filenames, matcher, hits, from, middle),
+                new SearchTask(filenames, matcher, hits, middle, to));
+        }
+    }
+    
+    // In mapped mode the bytes are scanned in place and only hits are decoded,
+    // all while holding the entry so a writer cannot truncate the mapped file
+    private String matchingContent(String filename, KeywordMatcher matcher) throws IOException {
+        if (mappedReads) {
+            StripedLock.Held held = entryLocks.read(filename);
+            try {
+                ByteBuffer content = store.map(filename);
+                metrics.fileRead(content.remaining());
+                return matcher.matches(content) ? KeywordMatcher.decode(content) : null;
+            } finally {
+                held.release();
+            }
+        }
+        String content = readEntry(filename);
+        return matcher.matches(content) ? content : null;
+    }
+    
+    private List<String> candidateEntries(String keyword) throws IOException {
+        Set<String> candidates = index.candidates(keyword);
+        metrics.indexLookup(candidates != null);
+        if (candidates == null) {
+            return listEntries();
+        }
+        List<String> filenames = new ArrayList<>(candidates);
+        filenames.sort(Collections.reverseOrder());
+        return filenames;
+    }
+    
+    LocalDateTime extractTimestampFromFilename(String filename) {
+        return DiaryEntry.timestampOf(filename);
     }
     
     public void createBackup() throws IOException {
-        String backupName = "diary_backup_" + 
-            LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss")) + 
-            ".zip";
+        createBackup(listEntries());
+    }
+    
+    /**
+     * Backs up the given snapshot of entry names. Entries deleted since the
+     * snapshot was taken are skipped.
+     */
+    public void createBackup(List<String> entries) throws IOException {
+        if ("parallel".equals(backupMode)) {
+            createParallelBackup(entries);
+            return;
+        }
+        if ("dedup".equals(backupMode)) {
+            DedupBackupStore dedup = new DedupBackupStore(store, backupDir);
+            Path snapshotPath = newBackupPath(dedup.getSnapshotsDirectory(), DedupBackupStore.PREFIX, DedupBackupStore.SUFFIX);
+            int newChunks = dedup.create(snapshotPath.getFileName().toString(), entries, DiaryConfig.configPath());
+            int freed = dedup.prune(backupRetention);
+            System.out.println("Snapshot created: " + snapshotPath + " (" + newChunks + " new chunks, "
+                + freed + " unreferenced chunks removed)");
+            return;
+        }
+        if ("incremental".equals(backupMode)) {
+            Path backupPath = newBackupPath(backupDir, IncrementalBackup.PREFIX, ".zip");
+            int stored = new IncrementalBackup(store, backupDir)
+                .create(backupPath, entries, DiaryConfig.configPath());
+            System.out.println("Incremental backup created: " + backupPath + " (" + stored + " changed entries)");
+            return;
+        }
         
-        Path backupPath = backupDir.resolve(backupName);
+        Path backupPath = newBackupPath(backupDir, "diary_backup_", ".zip");
         
         try (ZipOutputStream zos = new ZipOutputStream(
                 new FileOutputStream(backupPath.toFile()))) {
             
-            List<String> entries = listEntries();
             for (String entry : entries) {
-                Path filePath = entriesDir.resolve(entry);
+                byte[] content = readIfExists(entry);
+                if (content == null) {
+                    continue;
+                }
                 zos.putNextEntry(new ZipEntry(entry));
-                Files.copy(filePath, zos);
+                zos.write(content);
                 zos.closeEntry();
             }
             
             // Also backup config if exists
-            Path configPath = Paths.get("diary_config.ser");
+            Path configPath = DiaryConfig.configPath();
             if (Files.exists(configPath)) {
-                zos.putNextEntry(new ZipEntry("diary_config.ser"));
+                zos.putNextEntry(new ZipEntry(configPath.getFileName().toString()));
                 Files.copy(configPath, zos);
                 zos.closeEntry();
             }
@@ -107,18 +769,169 @@ public class DiaryFileHandler {
         System.out.println("Backup created: " + backupPath);
     }
     
+    private byte[] readIfExists(String filename) throws IOException {
+        try {
+            return store.read(filename);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+    
+    private void createParallelBackup(List<String> entries) throws IOException {
+        Path backupPath = newBackupPath(backupDir, "diary_backup_", ".zip");
+        Path configPath = DiaryConfig.configPath();
+        
+        List<String> names = new ArrayList<>(entries);
+        if (Files.exists(configPath)) {
+            names.add(configPath.getFileName().toString());
+        }
+        
+        long start = System.nanoTime();
+        ParallelZipWriter writer = new ParallelZipWriter(backupCompression, backupThreads);
+        writer.write(backupPath, names, name ->
+            name.equals(configPath.getFileName().toString()) ? Files.readAllBytes(configPath) : readIfExists(name));
+        double seconds = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+        double megabytes = writer.getRawBytes() / (1024.0 * 1024.0);
+        
+        System.out.println("Backup created: " + backupPath);
+        System.out.printf("%d files, %.1f MB -> %.1f MB in %.2f s (%.1f MB/s)%n",
+            writer.getFileCount(), megabytes, writer.getCompressedBytes() / (1024.0 * 1024.0), seconds, megabytes / seconds);
+    }
+    
+    // yyyyMMdd_HHmmss, then the _n that newBackupPath adds within the same second
+    private static final Pattern BACKUP_STAMP = Pattern.compile("(\\d{8}_\\d{6})(?:_(\\d+))?\\.");
+    
+    /**
+     * Oldest first by the time in the name, so that {@code _10} comes after
+     * {@code _2}, which plain string order gets wrong.
+     */
+    static final Comparator<String> BACKUP_ORDER = Comparator.comparing((String name) -> backupStamp(name, 1))
+        .thenComparingLong(name -> Long.parseLong(backupStamp(name, 2)))
+        .thenComparing(Comparator.naturalOrder());
+    
+    // Names without a stamp sort before all others
+    private static String backupStamp(String name, int group) {
+        Matcher matcher = BACKUP_STAMP.matcher(name);
+        if (!matcher.find()) {
+            return group == 1 ? "" : "0";
+        }
+        String value = matcher.group(group);
+        return value == null ? "0" : value;
+    }
+    
+    // Backups taken within the same second (manual and automatic) must not collide
+    private static Path newBackupPath(Path dir, String prefix, String suffix) {
+        String stamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss"));
+        Path backupPath = dir.resolve(prefix + stamp + suffix);
+        for (int i = 1; Files.exists(backupPath); i++) {
+            backupPath = dir.resolve(prefix + stamp + "_" + i + suffix);
+        }
+        return backupPath;
+    }
+    
+    public List<String> listBackups() throws IOException {
+        List<String> backups = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(backupDir, "diary_*.zip")) {
+            for (Path backup : stream) {
+                backups.add(backup.getFileName().toString());
+            }
+        }
+        if (Files.isDirectory(DedupBackupStore.directory(backupDir))) {
+            backups.addAll(new DedupBackupStore(store, backupDir).listSnapshots());
+        }
+        backups.sort(BACKUP_ORDER.reversed());
+        return backups;
+    }
+    
+    /** Restores the diary as of the given backup into a separate directory. */
+    public int restoreBackup(String backupName, String targetDir) throws IOException {
+        if (backupName.startsWith(DedupBackupStore.PREFIX)) {
+            return new DedupBackupStore(store, backupDir).restore(backupName, Paths.get(targetDir));
+        }
+        return IncrementalBackup.restore(backupDir, backupName, Paths.get(targetDir));
+    }
+    
     public boolean deleteEntry(String filename) throws IOException {
-        Path filePath = entriesDir.resolve(filename);
-        return Files.deleteIfExists(filePath);
+        StripedLock.Held held = entryLocks.lock(filename);
+        try {
+            boolean deleted;
+            try {
+                deleted = store.delete(filename);
+            } finally {
+                written(List.of(filename));
+            }
+            if (deleted) {
+                metrics.fileDeleted();
+            }
+            catalog.remove(filename);
+            index.remove(filename);
+            return deleted;
+        } finally {
+            held.release();
+        }
+    }
+    
+    /**
+     * Starts moving entry files into the configured layout in the background.
+     * Returns false in segment storage, which has no per-entry files.
+     */
+    public synchronized boolean startLayoutMigration() {
+        if (files == null) {
+            return false;
+        }
+        if (layoutMigration == null) {
+            layoutMigration = new EntryLayoutMigration(files, entryLocks, filename -> {
+                if (watcher != null) {
+                    try {
+                        known(filename);
+                    } catch (IOException e) {
+                        knownVersions.remove(filename);
+                    }
+                }
+            });
+            layoutMigration.start();
+        }
+        return true;
+    }
+    
+    public synchronized String getLayoutStatus() {
+        if (files == null) {
+            return "segments";
+        }
+        String layout = files.isSharded() ? "sharded (yyyy/MM)" : "flat";
+        return layoutMigration == null ? layout : layout + ", migration " + layoutMigration.getStatus();
+    }
+    
+    public String getWatchStatus() {
+        return watcher == null ? "off" : watcher.getStatus();
+    }
+    
+    public String getJournalStatus() {
+        return store instanceof JournaledEntryStore ? ((JournaledEntryStore) store).getStatistics() : "disabled";
     }
     
     public long getTotalEntries() throws IOException {
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(entriesDir, "diary_*.txt")) {
-            long count = 0;
-            for (Path ignored : stream) {
-                count++;
+        catalog.refreshIfStale();
+        return catalog.size();
+    }
+    
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (layoutMigration != null) {
+                layoutMigration.stop();
             }
-            return count;
+        }
+        if (watcher != null) {
+            watcher.close();
+        }
+        if (searchPool != null) {
+            searchPool.shutdown();
+        }
+        try {
+            store.close();
+        } finally {
+            directoryLock.close();
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,500 @@
+package com.diary;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * Positional inverted index kept in the entries directory. For every entry
+ * it records its length in terms and where each term occurs, which is
+ * enough for substring candidate lookup, BM25 ranking and phrase matching.
+ * Changes are appended to the index file as they happen and the file is
+ * rewritten once the log grows well past the live index.
+ *
+ * Each document also records the store version of the entry it was built
+ * from, so entries edited while the app was closed are indexed again.
+ *
+ * File format: a version header, then one record per line, either
+ * {@code +<tab>name<tab>version<tab>length<tab>term:pos,pos term:pos} or
+ * {@code -<tab>name}. Files in an older format are rebuilt from the entries.
+ */
+class DiaryIndex {
+    static final String INDEX_FILE = "diary.index";
+    private static final String HEADER = "# diary index v3";
+    // Usual BM25 parameters: term frequency saturation and length normalization
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    
+    // Recorded when the store cannot tell, so the entry is indexed again next time
+    private static final long NO_VERSION = -1;
+    
+    interface ContentSource {
+        String read(String filename) throws IOException;
+        
+        /** See {@link EntryStore#version(String)}. */
+        long version(String filename) throws IOException;
+    }
+    
+    /** An entry matching a ranked query. */
+    static final class Hit {
+        final String filename;
+        final double score;
+        
+        Hit(String filename, double score) {
+            this.filename = filename;
+            this.score = score;
+        }
+    }
+    
+    private static final class Document {
+        final long version;
+        final int length;
+        // Term -> ascending positions of the term in the entry
+        final Map<String, int[]> positions;
+        
+        Document(long version, int length, Map<String, int[]> positions) {
+            this.version = version;
+            this.length = length;
+            this.positions = positions;
+        }
+    }
+    
+    private final Path indexPath;
+    private final ContentSource source;
+    private final Map<String, Set<String>> postings = new HashMap<>();
+    private final Map<String, Document> documents = new HashMap<>();
+    private long totalLength;
+    private long logRecords;
+    
+    private DiaryIndex(Path entriesDir, ContentSource source) {
+        this.indexPath = entriesDir.resolve(INDEX_FILE);
+        this.source = source;
+    }
+    
+    /**
+     * Loads the index from disk and reconciles it with the entries that
+     * actually exist: missing and changed entries are indexed, vanished ones
+     * dropped.
+     */
+    static DiaryIndex open(Path entriesDir, Collection<String> filenames, ContentSource source) {
+        DiaryIndex index = new DiaryIndex(entriesDir, source);
+        // A new index file is written out so that it starts with the header
+        boolean changed = !Files.exists(index.indexPath);
+        try {
+            index.load();
+        } catch (IOException e) {
+            System.err.println("Warning: Could not load search index, rebuilding: " + e.getMessage());
+            index.documents.clear();
+            changed = true;
+        }
+        changed |= index.reconcileDocuments(filenames);
+        index.rebuildPostings();
+        if (changed) {
+            index.compact();
+        }
+        return index;
+    }
+    
+    /**
+     * Indexes entries missing from the index or changed since they were
+     * indexed and drops the ones that no longer exist, e.g. after changes
+     * made while nobody was watching.
+     */
+    synchronized void reconcile(Collection<String> filenames) {
+        if (reconcileDocuments(filenames)) {
+            rebuildPostings();
+            compact();
+        }
+    }
+    
+    private boolean reconcileDocuments(Collection<String> filenames) {
+        Set<String> existing = new HashSet<>(filenames);
+        boolean changed = documents.keySet().retainAll(existing);
+        for (String filename : existing) {
+            Document document = documents.get(filename);
+            try {
+                // Read before the content, so a write in between is caught next time
+                long version = source.version(filename);
+                if (document == null || document.version != version) {
+                    documents.put(filename, analyze(source.read(filename), version));
+                    changed = true;
+                }
+            } catch (FileNotFoundException e) {
+                changed |= documents.remove(filename) != null;
+            } catch (IOException e) {
+                System.err.println("Warning: Could not index file " + filename + ": " + e.getMessage());
+            }
+        }
+        return changed;
+    }
+    
+    /** Indexes the content just written; callers still hold the entry, so its version matches. */
+    synchronized void update(String filename, String content) {
+        removeDocument(filename);
+        append(addDocument(filename, content), 1);
+    }
+    
+    /** Indexes a batch of entries with a single append to the index file. */
+    synchronized void updateAll(Map<String, String> contents) {
+        StringBuilder records = new StringBuilder();
+        for (Map.Entry<String, String> entry : contents.entrySet()) {
+            removeDocument(entry.getKey());
+            if (records.length() > 0) {
+                records.append('\n');
+            }
+            records.append(addDocument(entry.getKey(), entry.getValue()));
+        }
+        if (records.length() > 0) {
+            append(records.toString(), contents.size());
+        }
+    }
+    
+    synchronized void remove(String filename) {
+        if (removeDocument(filename)) {
+            append("-\t" + filename, 1);
+        }
+    }
+    
+    /**
+     * Returns the entries that may contain the keyword as a case-insensitive
+     * substring, or {@code null} when the keyword has no indexable terms and
+     * every entry has to be scanned. Callers still verify each candidate.
+     */
+    synchronized Set<String> candidates(String keyword) {
+        String query = keyword.toLowerCase(Locale.ROOT);
+        Set<String> result = null;
+        int i = 0;
+        while (i < query.length()) {
+            if (!isTermChar(query.charAt(i))) {
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < query.length() && isTermChar(query.charAt(i))) {
+                i++;
+            }
+            Set<String> matches = matchingDocuments(query.substring(start, i), start == 0, i == query.length());
+            if (result == null) {
+                result = matches;
+            } else {
+                result.retainAll(matches);
+            }
+            if (result.isEmpty()) {
+                return result;
+            }
+        }
+        return result;
+    }
+    
+    // A keyword term touching the start of the keyword may be the tail of a
+    // longer term in the entry, one touching the end may be its head.
+    private Set<String> matchingDocuments(String term, boolean openStart, boolean openEnd) {
+        Set<String> matches = new HashSet<>();
+        if (!openStart && !openEnd) {
+            matches.addAll(postings.getOrDefault(term, Collections.emptySet()));
+            return matches;
+        }
+        for (Map.Entry<String, Set<String>> posting : postings.entrySet()) {
+            String candidate = posting.getKey();
+            boolean hit = openStart && openEnd ? candidate.contains(term)
+                : openStart ? candidate.endsWith(term)
+                : candidate.startsWith(term);
+            if (hit) {
+                matches.addAll(posting.getValue());
+            }
+        }
+        return matches;
+    }
+    
+    /**
+     * Returns the {@code limit} best entries matching the query, best first,
+     * ranked by BM25 over all the query's terms. Only a heap of {@code limit}
+     * hits is kept while the matches are scored.
+     */
+    synchronized List<Hit> search(SearchQuery query, int limit) {
+        return search(query, limit, filename -> true);
+    }
+    
+    /** As {@link #search(SearchQuery, int)}, considering only entries accepted by the filter. */
+    synchronized List<Hit> search(SearchQuery query, int limit, Predicate<String> filter) {
+        Set<String> matches = new HashSet<>();
+        for (List<List<String>> group : query.getGroups()) {
+            matches.addAll(matchGroup(group));
+        }
+        matches.removeIf(filter.negate());
+        
+        Set<String> terms = query.getTerms();
+        double averageLength = documents.isEmpty() ? 1 : Math.max(1.0, (double) totalLength / documents.size());
+        Map<String, Double> idf = new HashMap<>();
+        for (String term : terms) {
+            int df = postings.getOrDefault(term, Collections.emptySet()).size();
+            idf.put(term, Math.log(1 + (documents.size() - df + 0.5) / (df + 0.5)));
+        }
+        
+        // Min-heap on score, ties broken towards older entries so newer ones are kept
+        Comparator<Hit> worstFirst = Comparator.<Hit>comparingDouble(hit -> hit.score)
+            .thenComparing(hit -> hit.filename);
+        PriorityQueue<Hit> best = new PriorityQueue<>(Math.max(1, limit), worstFirst);
+        for (String filename : matches) {
+            Document document = documents.get(filename);
+            double score = 0;
+            for (String term : terms) {
+                int[] positions = document.positions.get(term);
+                if (positions != null) {
+                    double tf = positions.length;
+                    double norm = K1 * (1 - B + B * document.length / averageLength);
+                    score += idf.get(term) * tf * (K1 + 1) / (tf + norm);
+                }
+            }
+            best.add(new Hit(filename, score));
+            if (best.size() > limit) {
+                best.poll();
+            }
+        }
+        
+        List<Hit> hits = new ArrayList<>(best);
+        hits.sort(worstFirst.reversed());
+        return hits;
+    }
+    
+    // Entries containing every clause of the group; each clause is a term or a phrase
+    private Set<String> matchGroup(List<List<String>> group) {
+        List<List<String>> clauses = new ArrayList<>(group);
+        clauses.sort(Comparator.comparingInt(clause -> rarestPostings(clause).size()));
+        Set<String> result = null;
+        for (List<String> clause : clauses) {
+            Set<String> clauseMatches = new HashSet<>();
+            for (String filename : result == null ? rarestPostings(clause) : result) {
+                Document document = documents.get(filename);
+                if (document != null && containsPhrase(document, clause)) {
+                    clauseMatches.add(filename);
+                }
+            }
+            result = clauseMatches;
+            if (result.isEmpty()) {
+                break;
+            }
+        }
+        return result == null ? Collections.emptySet() : result;
+    }
+    
+    private Set<String> rarestPostings(List<String> clause) {
+        Set<String> rarest = null;
+        for (String term : clause) {
+            Set<String> docs = postings.getOrDefault(term, Collections.emptySet());
+            if (rarest == null || docs.size() < rarest.size()) {
+                rarest = docs;
+            }
+        }
+        return rarest == null ? Collections.emptySet() : rarest;
+    }
+    
+    // A single term is a phrase of one; otherwise every following term has to
+    // appear right after the previous one
+    private static boolean containsPhrase(Document document, List<String> phrase) {
+        int[] first = document.positions.get(phrase.get(0));
+        if (first == null) {
+            return false;
+        }
+        int[][] rest = new int[phrase.size() - 1][];
+        for (int i = 1; i < phrase.size(); i++) {
+            rest[i - 1] = document.positions.get(phrase.get(i));
+            if (rest[i - 1] == null) {
+                return false;
+            }
+        }
+        for (int start : first) {
+            boolean match = true;
+            for (int i = 0; i < rest.length && match; i++) {
+                match = Arrays.binarySearch(rest[i], start + i + 1) >= 0;
+            }
+            if (match) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /** The terms of the text in order, lowercased, with repeats. */
+    static List<String> terms(String content) {
+        String text = content.toLowerCase(Locale.ROOT);
+        List<String> terms = new ArrayList<>();
+        int i = 0;
+        while (i < text.length()) {
+            if (!isTermChar(text.charAt(i))) {
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < text.length() && isTermChar(text.charAt(i))) {
+                i++;
+            }
+            terms.add(text.substring(start, i));
+        }
+        return terms;
+    }
+    
+    private static boolean isTermChar(char c) {
+        return Character.isLetterOrDigit(c);
+    }
+    
+    private static Document analyze(String content, long version) {
+        List<String> terms = terms(content);
+        Map<String, List<Integer>> collected = new LinkedHashMap<>();
+        for (int position = 0; position < terms.size(); position++) {
+            collected.computeIfAbsent(terms.get(position), t -> new ArrayList<>()).add(position);
+        }
+        Map<String, int[]> positions = new HashMap<>(collected.size() * 2);
+        for (Map.Entry<String, List<Integer>> term : collected.entrySet()) {
+            positions.put(term.getKey(), term.getValue().stream().mapToInt(Integer::intValue).toArray());
+        }
+        return new Document(version, terms.size(), positions);
+    }
+    
+    // Returns the log record for the new document
+    private String addDocument(String filename, String content) {
+        Document document = analyze(content, versionOf(filename));
+        documents.put(filename, document);
+        totalLength += document.length;
+        for (String term : document.positions.keySet()) {
+            postings.computeIfAbsent(term, t -> new HashSet<>()).add(filename);
+        }
+        return record(filename, document);
+    }
+    
+    private long versionOf(String filename) {
+        try {
+            return source.version(filename);
+        } catch (IOException e) {
+            return NO_VERSION;
+        }
+    }
+    
+    private boolean removeDocument(String filename) {
+        Document document = documents.remove(filename);
+        if (document == null) {
+            return false;
+        }
+        totalLength -= document.length;
+        for (String term : document.positions.keySet()) {
+            Set<String> docs = postings.get(term);
+            if (docs != null) {
+                docs.remove(filename);
+                if (docs.isEmpty()) {
+                    postings.remove(term);
+                }
+            }
+        }
+        return true;
+    }
+    
+    private void rebuildPostings() {
+        postings.clear();
+        totalLength = 0;
+        for (Map.Entry<String, Document> doc : documents.entrySet()) {
+            totalLength += doc.getValue().length;
+            for (String term : doc.getValue().positions.keySet()) {
+                postings.computeIfAbsent(term, t -> new HashSet<>()).add(doc.getKey());
+            }
+        }
+    }
+    
+    private static String record(String filename, Document document) {
+        StringBuilder record = new StringBuilder(64 + document.positions.size() * 12);
+        record.append("+\t").append(filename).append('\t').append(document.version)
+            .append('\t').append(document.length).append('\t');
+        boolean first = true;
+        for (Map.Entry<String, int[]> term : document.positions.entrySet()) {
+            if (!first) {
+                record.append(' ');
+            }
+            first = false;
+            record.append(term.getKey()).append(':');
+            int[] positions = term.getValue();
+            for (int i = 0; i < positions.length; i++) {
+                if (i > 0) {
+                    record.append(',');
+                }
+                record.append(positions[i]);
+            }
+        }
+        return record.toString();
+    }
+    
+    private static Document parseRecord(String version, String length, String terms) {
+        Map<String, int[]> positions = new HashMap<>();
+        if (!terms.isEmpty()) {
+            for (String term : terms.split(" ")) {
+                int colon = term.lastIndexOf(':');
+                String[] offsets = term.substring(colon + 1).split(",");
+                int[] parsed = new int[offsets.length];
+                for (int i = 0; i < offsets.length; i++) {
+                    parsed[i] = Integer.parseInt(offsets[i]);
+                }
+                positions.put(term.substring(0, colon), parsed);
+            }
+        }
+        return new Document(Long.parseLong(version), Integer.parseInt(length), positions);
+    }
+    
+    private void load() throws IOException {
+        if (!Files.exists(indexPath)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(indexPath, StandardCharsets.UTF_8)) {
+            if (!HEADER.equals(reader.readLine())) {
+                throw new IOException("Index file is in an older format");
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t", 5);
+                try {
+                    if (parts[0].equals("+") && parts.length == 5) {
+                        documents.put(parts[1], parseRecord(parts[2], parts[3], parts[4]));
+                    } else if (parts[0].equals("-") && parts.length >= 2) {
+                        documents.remove(parts[1]);
+                    }
+                } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                    throw new IOException("Corrupt index record for " + parts[1]);
+                }
+                logRecords++;
+            }
+        }
+    }
+    
+    private void append(String records, int count) {
+        try {
+            Files.writeString(indexPath, records + "\n", StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            logRecords += count;
+        } catch (IOException e) {
+            System.err.println("Warning: Could not update search index: " + e.getMessage());
+        }
+        if (logRecords > 2L * documents.size() + 1000) {
+            compact();
+        }
+    }
+    
+    private void compact() {
+        Path temp = indexPath.resolveSibling(INDEX_FILE + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            for (Map.Entry<String, Document> doc : documents.entrySet()) {
+                writer.write(record(doc.getKey(), doc.getValue()));
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            System.err.println("Warning: Could not write search index: " + e.getMessage());
+            return;
+        }
+        try {
+            Files.move(temp, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logRecords = documents.size();
+        } catch (IOException e) {
+            System.err.println("Warning: Could not replace search index: " + e.getMessage());
+        }
+    }
+}
\ No newline at end of file
@@ -4,56 +4,356 @@ import java.io.*;
 import java.nio.file.*;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+/**
+ * Entry point for everything the app does with a diary. Safe to use from
+ * several threads at once (menu, auto-backup, importer, API): operations
+ * share the current file handler, and reopening it for new settings waits
+ * for them, so no operation ever sees a closed handler.
+ */
 public class DiaryManager {
-    private DiaryConfig config;
-    private DiaryFileHandler fileHandler;
+    private static final int IMPORT_BATCH_SIZE = 1000;
+    
+    /** Takes search results a page at a time. */
+    interface ResultPage {
+        void accept(List<DiaryEntry> entries) throws IOException;
+    }
+    
+    private final DiaryConfig config;
+    // Replaced together while holding the write lock; operations hold the read lock
+    private volatile DiaryFileHandler fileHandler;
+    private volatile EntryCache cache;
+    private Path openEntriesDirectory;
+    private final ReadWriteLock handlerLock = new ReentrantReadWriteLock();
+    private final BackupScheduler backupScheduler = new BackupScheduler();
+    private final DiaryMetrics metrics = new DiaryMetrics();
+    private final MetricsExporter metricsExporter = new MetricsExporter(metrics);
     
     public DiaryManager() throws IOException {
-        this.config = DiaryConfig.loadConfig();
-        initializeFileHandler();
+        this(DiaryConfig.loadConfig());
+    }
+    
+    /** Works on the given configuration instead of the saved one, e.g. for load tests. */
+    DiaryManager(DiaryConfig config) throws IOException {
+        this.config = config;
+        config.addSettingsListener(this::settingChanged);
+        initializeFileHandler(() -> { });
+        metricsExporter.configure(config.getSettings());
+    }
+    
+    // Settings read on every use need no action; the cache can be resized in place
+    private void settingChanged(String key, DiarySettings settings) {
+        if (key.equals("cacheSizeMB") && cache != null) {
+            cache.resize(settings.getCacheSizeBytes());
+        }
+        if (key.startsWith("metrics")) {
+            metricsExporter.configure(settings);
+        }
     }
     
-    private void initializeFileHandler() throws IOException {
+    /**
+     * Opens a handler for the current configuration in place of the old one.
+     * If it cannot be opened, {@code undo} reverts the configuration change
+     * and the old handler stays in use.
+     */
+    private void initializeFileHandler(Runnable undo) throws IOException {
+        Lock lock = handlerLock.writeLock();
+        lock.lock();
         try {
-            this.fileHandler = new DiaryFileHandler(
-                config.getEntriesDirectory(),
-                config.getBackupDirectory()
-            );
+            DiaryFileHandler previous = this.fileHandler;
+            Path entriesDirectory = Paths.get(config.getEntriesDirectory());
+            // The directory lock lets only one handler at a time into a
+            // directory, so the old one has to go first if it stays the same
+            boolean sameDirectory = previous != null && isSameDirectory(openEntriesDirectory, entriesDirectory);
+            if (previous != null) {
+                // A running auto-backup still reads through the old handler
+                backupScheduler.awaitIdle();
+            }
+            DiaryFileHandler opened;
+            try {
+                if (sameDirectory) {
+                    previous.close();
+                }
+                opened = new DiaryFileHandler(config, metrics);
+            } catch (IOException | RuntimeException e) {
+                undo.run();
+                if (sameDirectory) {
+                    reopenAfterFailure(e);
+                }
+                throw e;
+            }
+            if (previous != null && !sameDirectory) {
+                try {
+                    previous.close();
+                } catch (IOException e) {
+                    System.err.println("Warning: Could not close previous entry store: " + e.getMessage());
+                }
+            }
+            this.fileHandler = opened;
+            this.openEntriesDirectory = entriesDirectory;
+            EntryCache cache = new EntryCache(config.getSettings().getCacheSizeBytes());
+            this.cache = cache;
+            opened.setChangeListener(changeListener(cache));
         } catch (IOException e) {
             System.err.println("Error initializing file handler: " + e.getMessage());
             throw e;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // The old handler was closed for the failed one; opens it again under the
+    // restored configuration
+    private void reopenAfterFailure(Exception failure) {
+        try {
+            this.fileHandler = new DiaryFileHandler(config, metrics);
+            this.fileHandler.setChangeListener(changeListener(cache));
+            cache.clear();
+        } catch (IOException | RuntimeException e) {
+            failure.addSuppressed(e);
+        }
+    }
+    
+    private static boolean isSameDirectory(Path a, Path b) {
+        try {
+            return a.toAbsolutePath().normalize().equals(b.toAbsolutePath().normalize())
+                || (Files.exists(a) && Files.exists(b) && Files.isSameFile(a, b));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+    
+    // Entries changed by other programs must not be served from the cache
+    private static EntryWatcher.Listener changeListener(EntryCache cache) {
+        return new EntryWatcher.Listener() {
+            @Override
+            public void entriesChanged(Set<String> filenames) {
+                filenames.forEach(cache::invalidate);
+            }
+            
+            @Override
+            public void rescanNeeded() {
+                cache.clear();
+            }
+        };
+    }
+    
+    /**
+     * Applies a configuration change that needs a new handler and saves it
+     * once the handler is open; otherwise the change is reverted.
+     */
+    private void reconfigure(Runnable change, Runnable undo) throws IOException {
+        Lock lock = handlerLock.writeLock();
+        lock.lock();
+        try {
+            change.run();
+            initializeFileHandler(undo);
+            saveConfiguration();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Runs an operation on the current handler, timed, without letting it be swapped meanwhile
+    private <T> T withHandler(String operation, DiaryMetrics.Operation<T> body) throws IOException {
+        Lock lock = handlerLock.readLock();
+        lock.lock();
+        try {
+            return metrics.time(operation, body);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private void withHandler(String operation, DiaryMetrics.VoidOperation body) throws IOException {
+        Lock lock = handlerLock.readLock();
+        lock.lock();
+        try {
+            metrics.time(operation, body);
+        } finally {
+            lock.unlock();
         }
     }
     
     public void saveEntry(DiaryEntry entry) throws IOException {
-        fileHandler.saveEntry(entry);
+        withHandler("saveEntry", () -> {
+            try {
+                fileHandler.saveEntry(entry);
+            } finally {
+                cache.invalidate(entry.getFilename());
+            }
+        });
         checkAutoBackup();
     }
     
+    /** Saves the entry unless one already exists at its timestamp; returns whether it did. */
+    public boolean createEntry(DiaryEntry entry) throws IOException {
+        boolean created = withHandler("createEntry", () -> {
+            try {
+                return fileHandler.createEntry(entry);
+            } finally {
+                cache.invalidate(entry.getFilename());
+            }
+        });
+        if (created) {
+            checkAutoBackup();
+        }
+        return created;
+    }
+    
+    public void replaceEntry(String oldFilename, DiaryEntry entry) throws IOException {
+        withHandler("replaceEntry", () -> {
+            try {
+                fileHandler.replaceEntry(oldFilename, entry);
+            } finally {
+                cache.invalidate(oldFilename);
+                cache.invalidate(entry.getFilename());
+            }
+        });
+    }
+    
+    /**
+     * Imports entries from a JSON Lines file in batches. Auto-backup runs at
+     * most once, after the whole file is in.
+     */
+    public long importEntries(String source) throws IOException {
+        long imported;
+        try {
+            imported = withHandler("importEntries",
+                () -> new JsonLinesTransfer(fileHandler, IMPORT_BATCH_SIZE).importFrom(Paths.get(source)));
+        } finally {
+            cache.clear();
+        }
+        if (imported > 0 && config.getSettings().isAutoBackup()) {
+            triggerAutoBackup();
+        }
+        return imported;
+    }
+    
+    public long exportEntries(String target) throws IOException {
+        return withHandler("exportEntries",
+            () -> new JsonLinesTransfer(fileHandler, IMPORT_BATCH_SIZE).exportTo(Paths.get(target)));
+    }
+    
     public List<String> listEntries() throws IOException {
-        return fileHandler.listEntries();
+        return withHandler("listEntries", () -> fileHandler.listEntries());
+    }
+    
+    /** Entry filenames newest first, fetching only the requested page. */
+    public List<String> page(int offset, int size) throws IOException {
+        return withHandler("page", () -> fileHandler.listEntries(offset, size));
     }
     
     public String readEntry(String filename) throws IOException {
-        return fileHandler.readEntry(filename);
+        return withHandler("readEntry", () -> {
+            // Stamped before reading, so a write that lands meanwhile keeps
+            // what we read out of the cache
+            long stamp = cache.stamp();
+            String content = cache.get(filename);
+            metrics.cacheLookup(content != null);
+            if (content == null) {
+                content = fileHandler.readEntry(filename);
+                cache.put(filename, content, stamp);
+            }
+            return content;
+        });
     }
     
+    /**
+     * In ranked mode returns the best matches for the query, best first;
+     * otherwise every entry containing the keyword, newest first. Queries
+     * without any words fall back to the substring search.
+     */
     public List<DiaryEntry> searchEntries(String keyword) throws IOException {
         config.addSearch(keyword);
-        return fileHandler.searchEntries(keyword);
+        DiarySettings settings = config.getSettings();
+        if (settings.isRankedSearch() && !SearchQuery.parse(keyword).isEmpty()) {
+            return withHandler("searchRanked", () -> fileHandler.searchRanked(keyword, settings.getSearchResults()));
+        }
+        return withHandler("searchEntries", () -> fileHandler.searchEntries(keyword));
+    }
+    
+    /**
+     * As {@link #searchEntries(String)}, limited to entries written in
+     * {@code [from, to)}. A null bound leaves that end open.
+     */
+    public List<DiaryEntry> searchEntries(String keyword, LocalDateTime from, LocalDateTime to) throws IOException {
+        config.addSearch(keyword);
+        return findEntries(keyword, from, to);
+    }
+    
+    /** As {@link #searchEntries(String, LocalDateTime, LocalDateTime)}, without recording a recent search. */
+    public List<DiaryEntry> findEntries(String keyword, LocalDateTime from, LocalDateTime to) throws IOException {
+        DiarySettings settings = config.getSettings();
+        if (settings.isRankedSearch() && !SearchQuery.parse(keyword).isEmpty()) {
+            return withHandler("searchRanked",
+                () -> fileHandler.searchRanked(keyword, settings.getSearchResults(), from, to));
+        }
+        return withHandler("searchEntries", () -> fileHandler.searchEntries(keyword, from, to));
+    }
+    
+    /**
+     * As {@link #findEntries(String, LocalDateTime, LocalDateTime)}, handing
+     * the results over as they are found. Substring matches come a page of
+     * {@code pageSize} candidates at a time, so their content is never all
+     * held at once; ranked results are few and come as one page.
+     */
+    void findEntries(String keyword, LocalDateTime from, LocalDateTime to, int pageSize, ResultPage results)
+            throws IOException {
+        DiarySettings settings = config.getSettings();
+        if (settings.isRankedSearch() && !SearchQuery.parse(keyword).isEmpty()) {
+            results.accept(findEntries(keyword, from, to));
+            return;
+        }
+        List<String> candidates = withHandler("searchCandidates", () -> fileHandler.searchCandidates(keyword, from, to));
+        for (int start = 0; start < candidates.size(); start += pageSize) {
+            List<String> page = candidates.subList(start, Math.min(candidates.size(), start + pageSize));
+            // The handler is held per page only, so a slow reader does not hold up a reopen
+            results.accept(withHandler("searchEntries", () -> fileHandler.matchEntries(page, keyword)));
+        }
+    }
+    
+    /** Entries written in {@code [from, to)}, newest first; null bounds are open. */
+    public List<String> listEntriesBetween(LocalDateTime from, LocalDateTime to) throws IOException {
+        return withHandler("listEntriesBetween", () -> fileHandler.listEntriesBetween(from, to));
+    }
+    
+    /** A page of {@link #listEntriesBetween(LocalDateTime, LocalDateTime)}. */
+    public List<String> pageBetween(LocalDateTime from, LocalDateTime to, int offset, int size) throws IOException {
+        return withHandler("pageBetween", () -> fileHandler.listEntriesBetween(from, to, offset, size));
+    }
+    
+    public boolean isRankedSearch() {
+        return config.getSettings().isRankedSearch();
     }
     
     public void createBackup() throws IOException {
-        fileHandler.createBackup();
+        withHandler("createBackup", () -> fileHandler.createBackup());
+    }
+    
+    public List<String> listBackups() throws IOException {
+        return withHandler("listBackups", () -> fileHandler.listBackups());
+    }
+    
+    public int restoreBackup(String backupName, String targetDir) throws IOException {
+        return withHandler("restoreBackup", () -> fileHandler.restoreBackup(backupName, targetDir));
     }
     
     public boolean deleteEntry(String filename) throws IOException {
-        return fileHandler.deleteEntry(filename);
+        return withHandler("deleteEntry", () -> {
+            try {
+                return fileHandler.deleteEntry(filename);
+            } finally {
+                cache.invalidate(filename);
+            }
+        });
     }
     
     public long getTotalEntries() throws IOException {
-        return fileHandler.getTotalEntries();
+        return withHandler("getTotalEntries", () -> fileHandler.getTotalEntries());
     }
     
     public LocalDateTime extractTimestamp(String filename) {
@@ -66,25 +366,81 @@ public class DiaryManager {
     
     // Configuration management methods
     public void setEntriesDirectory(String dir) throws IOException {
-        config.setEntriesDirectory(dir);
-        saveConfiguration();
-        initializeFileHandler();
+        String previous = config.getEntriesDirectory();
+        reconfigure(() -> config.setEntriesDirectory(dir), () -> config.setEntriesDirectory(previous));
     }
     
     public void setBackupDirectory(String dir) throws IOException {
-        config.setBackupDirectory(dir);
-        saveConfiguration();
-        initializeFileHandler();
+        String previous = config.getBackupDirectory();
+        reconfigure(() -> config.setBackupDirectory(dir), () -> config.setBackupDirectory(previous));
     }
     
     public boolean toggleAutoBackup() {
-        boolean current = Boolean.parseBoolean(config.getSetting("autoBackup"));
-        config.setSetting("autoBackup", String.valueOf(!current));
-        return !current;
+        boolean enabled = !config.getSettings().isAutoBackup();
+        config.setSetting("autoBackup", String.valueOf(enabled));
+        return enabled;
+    }
+    
+    public String toggleStorageMode() throws IOException {
+        String mode = config.getSettings().isSegmentStorage() ? "files" : "segments";
+        updateSetting("storageMode", mode);
+        return mode;
+    }
+    
+    public Map<String, String> getSettings() {
+        Map<String, String> settings = new LinkedHashMap<>();
+        for (String name : config.getSettingNames()) {
+            settings.put(name, config.getSetting(name));
+        }
+        return settings;
+    }
+    
+    /**
+     * Validates and applies a setting. Storage and backup settings are picked
+     * up by reopening the file handler, the others take effect immediately.
+     *
+     * @throws IllegalArgumentException if the key is unknown or the value invalid
+     */
+    public void updateSetting(String key, String value) throws IOException {
+        if (DiarySettings.affectsStorage(key)) {
+            String previous = config.getSetting(key);
+            reconfigure(() -> config.setSetting(key, value), () -> config.setSetting(key, previous));
+        } else {
+            config.setSetting(key, value);
+            saveConfiguration();
+        }
+        if (key.equals("entryLayout")) {
+            withHandler("startLayoutMigration", () -> {
+                fileHandler.startLayoutMigration();
+            });
+        }
+        if (key.equals("entryCompression")) {
+            System.out.println(withHandler("recompressEntries", () -> fileHandler.recompressEntries()));
+        }
+    }
+    
+    /**
+     * Switches between one flat entries directory and yyyy/MM shards and
+     * moves the existing entries over in the background. The diary stays
+     * usable meanwhile.
+     */
+    public String toggleEntryLayout() throws IOException {
+        String layout = config.getSettings().isShardedLayout() ? "flat" : "sharded";
+        updateSetting("entryLayout", layout);
+        return layout;
+    }
+    
+    /** Compression of entries at rest, with this session's savings. */
+    public String getCompressionStatus() {
+        return fileHandler.getCompressionStatus();
+    }
+    
+    public String getLayoutStatus() {
+        return fileHandler.getLayoutStatus();
     }
     
     public int getPageSize() {
-        return Integer.parseInt(config.getSetting("maxEntriesPerPage"));
+        return config.getSettings().getMaxEntriesPerPage();
     }
     
     public List<String> getRecentSearches() {
@@ -95,16 +451,64 @@ public class DiaryManager {
         config.addSearch(keyword);
     }
     
+    public String getAutoBackupStatus() {
+        return backupScheduler.getStatus();
+    }
+    
+    /** Waits for a running auto-backup to finish and closes the store, used on exit. */
+    public void shutdown() {
+        backupScheduler.shutdown();
+        metricsExporter.close();
+        Lock lock = handlerLock.writeLock();
+        lock.lock();
+        try {
+            fileHandler.close();
+        } catch (IOException e) {
+            System.err.println("Warning: Could not close entry store: " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /** Watching of the entries for changes made by other programs. */
+    public String getWatchStatus() {
+        return fileHandler.getWatchStatus();
+    }
+    
+    public String getJournalStatus() {
+        return fileHandler.getJournalStatus();
+    }
+    
+    public String getCacheStatistics() {
+        return cache.toString();
+    }
+    
+    /** Latency percentiles per operation, I/O volume and hit ratios since startup. */
+    public String getMetricsReport() {
+        return metrics.report();
+    }
+    
     public String getEntriesDirectory() {
         return config.getEntriesDirectory();
     }
     
     private void checkAutoBackup() throws IOException {
-        if (Boolean.parseBoolean(config.getSetting("autoBackup"))) {
-            if (getTotalEntries() % 10 == 0) { // Backup every 10 entries
-                System.out.println("Auto-backup triggered...");
-                createBackup();
+        DiarySettings settings = config.getSettings();
+        if (settings.isAutoBackup()) {
+            if (getTotalEntries() % settings.getAutoBackupInterval() == 0) {
+                triggerAutoBackup();
             }
         }
     }
+    
+    private void triggerAutoBackup() throws IOException {
+        System.out.println("Auto-backup triggered...");
+        Lock lock = handlerLock.readLock();
+        lock.lock();
+        try {
+            backupScheduler.trigger(fileHandler, fileHandler.listEntries());
+        } finally {
+            lock.unlock();
+        }
+    }
 }
\ No newline at end of file
@@ -1,6 +1,9 @@
 package com.diary;
 
 import java.io.*;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
 import java.util.*;
 
 public class DiaryMenu {
@@ -72,30 +75,31 @@ public class DiaryMenu {
     
     private void readEntries() throws IOException {
         System.out.println("\n=== Read Previous Entries ===");
-        List<String> entries = diaryManager.listEntries();
+        long totalEntries = diaryManager.getTotalEntries();
         
-        if (entries.isEmpty()) {
+        if (totalEntries == 0) {
             System.out.println("No diary entries found.");
             return;
         }
         
-        int choice = displayPaginatedList(entries, "Select an entry to read (0 to return): ");
+        String filename = displayPaginatedList(totalEntries, "Select an entry to read (0 to return): ");
         
-        if (choice == 0) return;
-        
-        if (choice > 0 && choice <= entries.size()) {
-            String filename = entries.get(choice - 1);
-            String content = diaryManager.readEntry(filename);
-            System.out.println("\n--- Entry: " + filename + " ---");
-            System.out.println(content);
-            System.out.println("--- End of Entry ---");
-            
-            System.out.println("\nOptions: [D]elete this entry, [E]dit, [R]eturn");
-            String option = scanner.nextLine().toLowerCase();
-            handleEntryOptions(option, filename);
+        if (filename != null) {
+            showEntry(filename);
         }
     }
     
+    private void showEntry(String filename) throws IOException {
+        String content = diaryManager.readEntry(filename);
+        System.out.println("\n--- Entry: " + filename + " ---");
+        System.out.println(content);
+        System.out.println("--- End of Entry ---");
+        
+        System.out.println("\nOptions: [D]elete this entry, [E]dit, [R]eturn");
+        String option = scanner.nextLine().toLowerCase();
+        handleEntryOptions(option, filename);
+    }
+    
     private void handleEntryOptions(String option, String filename) throws IOException {
         switch (option) {
             case "d" -> {
@@ -124,37 +128,67 @@ public class DiaryMenu {
         
         if (content.length() > 0) {
             DiaryEntry entry = new DiaryEntry(diaryManager.extractTimestamp(filename), content.toString());
-            diaryManager.saveEntry(entry);
-            if (!entry.getFilename().equals(filename)) {
-                diaryManager.deleteEntry(filename);
-            }
+            diaryManager.replaceEntry(filename, entry);
             System.out.println("Entry updated successfully.");
         }
     }
     
     private void searchEntries() throws IOException {
         System.out.println("\n=== Search Entries ===");
-        System.out.print("Enter search keyword: ");
+        boolean ranked = diaryManager.isRankedSearch();
+        if (ranked) {
+            System.out.println("Use \"quotes\" for phrases and OR for alternatives.");
+            System.out.print("Enter search terms: ");
+        } else {
+            System.out.print("Enter search keyword: ");
+        }
         String keyword = scanner.nextLine().trim();
         
+        LocalDate from;
+        LocalDate to;
+        try {
+            from = readDate("From date (yyyy-MM-dd, blank for no limit): ");
+            to = readDate("To date, inclusive (yyyy-MM-dd, blank for no limit): ");
+        } catch (DateTimeParseException e) {
+            System.out.println("Invalid date: " + e.getParsedString());
+            return;
+        }
+        LocalDateTime start = from == null ? null : from.atStartOfDay();
+        LocalDateTime end = to == null ? null : to.plusDays(1).atStartOfDay();
+        
         if (keyword.isEmpty()) {
-            System.out.println("Search keyword cannot be empty!");
+            if (from == null && to == null) {
+                System.out.println("Search keyword cannot be empty!");
+                return;
+            }
+            String filename = displayEntriesBetween(start, end, "Select an entry to read (0 to return): ");
+            if (filename != null) {
+                showEntry(filename);
+            }
             return;
         }
         
         diaryManager.addRecentSearch(keyword);
-        List<DiaryEntry> results = diaryManager.searchEntries(keyword);
+        List<DiaryEntry> results = from == null && to == null ? diaryManager.searchEntries(keyword)
+            : diaryManager.searchEntries(keyword, start, end);
         
         if (results.isEmpty()) {
             System.out.println("No entries found containing: " + keyword);
         } else {
-            System.out.println("\nFound " + results.size() + " entries:");
+            System.out.println(ranked ? "\nTop " + results.size() + " entries, best match first:"
+                : "\nFound " + results.size() + " entries:");
             for (int i = 0; i < results.size(); i++) {
                 System.out.println((i + 1) + ". " + results.get(i));
             }
         }
     }
     
+    private LocalDate readDate(String prompt) {
+        System.out.print(prompt);
+        String input = scanner.nextLine().trim();
+        return input.isEmpty() ? null : LocalDate.parse(input);
+    }
+    
     private void createBackup() throws IOException {
         System.out.println("\n=== Create Backup ===");
         System.out.print("Are you sure you want to create a backup? (y/n): ");
@@ -163,11 +197,43 @@ public class DiaryMenu {
         }
     }
     
+    private void restoreBackup() throws IOException {
+        List<String> backups = diaryManager.listBackups();
+        if (backups.isEmpty()) {
+            System.out.println("No backups found.");
+            return;
+        }
+        System.out.println("\nAvailable backups:");
+        for (int i = 0; i < backups.size(); i++) {
+            System.out.println((i + 1) + ". " + backups.get(i));
+        }
+        System.out.print("Select a backup to restore (0 to return): ");
+        int choice = Integer.parseInt(scanner.nextLine());
+        if (choice < 1 || choice > backups.size()) return;
+        
+        System.out.print("Restore into directory: ");
+        String dir = scanner.nextLine().trim();
+        if (dir.isEmpty()) {
+            System.out.println("Directory cannot be empty!");
+            return;
+        }
+        int restored = diaryManager.restoreBackup(backups.get(choice - 1), dir);
+        System.out.println("Restored " + restored + " entries into " + dir);
+        System.out.println("Point the entries directory there to use the restored diary.");
+    }
+    
     private void showStatistics() throws IOException {
         System.out.println("\n=== Diary Statistics ===");
         System.out.println("Total entries: " + diaryManager.getTotalEntries());
         System.out.println("Entries directory: " + diaryManager.getEntriesDirectory());
         System.out.println("Recent searches: " + diaryManager.getRecentSearches());
+        System.out.println("Entry cache: " + diaryManager.getCacheStatistics());
+        System.out.println("Auto-backup: " + diaryManager.getAutoBackupStatus());
+        System.out.println("Journal: " + diaryManager.getJournalStatus());
+        System.out.println("Entry layout: " + diaryManager.getLayoutStatus());
+        System.out.println("Outside changes: " + diaryManager.getWatchStatus());
+        System.out.println("Entry compression: " + diaryManager.getCompressionStatus());
+        System.out.println("\n" + diaryManager.getMetricsReport());
     }
     
     private void showSettings() {
@@ -176,13 +242,19 @@ public class DiaryMenu {
         System.out.println("2. Change backup directory");
         System.out.println("3. Toggle auto-backup");
         System.out.println("4. View recent searches");
-        System.out.println("5. Back to main menu");
-        System.out.print("Choose an option (1-5): ");
+        System.out.println("5. Toggle storage mode (files/segments)");
+        System.out.println("6. Advanced settings");
+        System.out.println("7. Restore from backup");
+        System.out.println("8. Import entries (JSON Lines)");
+        System.out.println("9. Export entries (JSON Lines)");
+        System.out.println("10. Toggle entry layout (flat/sharded by month)");
+        System.out.println("11. Back to main menu");
+        System.out.print("Choose an option (1-11): ");
         
         try {
             int choice = Integer.parseInt(scanner.nextLine());
             handleSettingsChoice(choice);
-        } catch (NumberFormatException | IOException e) {
+        } catch (IllegalArgumentException | IOException e) {
             System.out.println("Error: " + e.getMessage());
         }
     }
@@ -209,23 +281,54 @@ public class DiaryMenu {
                     System.out.println("- " + search);
                 }
             }
+            case 5 -> {
+                String mode = diaryManager.toggleStorageMode();
+                System.out.println("Storage mode: " + mode.toUpperCase());
+            }
+            case 6 -> {
+                System.out.println("\nCurrent settings:");
+                diaryManager.getSettings().forEach((key, value) ->
+                    System.out.println("- " + key + " = " + value));
+                System.out.print("Enter key=value to change (blank to return): ");
+                String input = scanner.nextLine().trim();
+                int separator = input.indexOf('=');
+                if (separator > 0) {
+                    diaryManager.updateSetting(input.substring(0, separator).trim(),
+                        input.substring(separator + 1).trim());
+                    System.out.println("Setting updated.");
+                }
+            }
+            case 7 -> restoreBackup();
+            case 8 -> {
+                System.out.print("Enter file to import: ");
+                diaryManager.importEntries(scanner.nextLine().trim());
+            }
+            case 9 -> {
+                System.out.print("Enter file to export to: ");
+                diaryManager.exportEntries(scanner.nextLine().trim());
+            }
+            case 10 -> {
+                String layout = diaryManager.toggleEntryLayout();
+                System.out.println("Entry layout: " + layout.toUpperCase() + "; moving existing entries in the background.");
+            }
         }
     }
     
-    private int displayPaginatedList(List<String> items, String prompt) throws IOException {
+    // Fetches one page of entry names at a time and returns the selected one, or null
+    private String displayPaginatedList(long totalItems, String prompt) throws IOException {
         int pageSize = diaryManager.getPageSize();
-        int totalPages = (int) Math.ceil((double) items.size() / pageSize);
+        int totalPages = (int) Math.ceil((double) totalItems / pageSize);
         int currentPage = 0;
         
         while (currentPage < totalPages) {
             int start = currentPage * pageSize;
-            int end = Math.min(start + pageSize, items.size());
+            List<String> items = diaryManager.page(start, pageSize);
             
             System.out.println("\nPage " + (currentPage + 1) + " of " + totalPages);
             System.out.println("---");
             
-            for (int i = start; i < end; i++) {
-                System.out.println((i + 1) + ". " + items.get(i));
+            for (int i = 0; i < items.size(); i++) {
+                System.out.println((start + i + 1) + ". " + items.get(i));
             }
             
             System.out.println("\n[N]ext page, [P]revious page, " + prompt);
@@ -239,16 +342,68 @@ public class DiaryMenu {
             } else {
                 try {
                     int selection = Integer.parseInt(choice);
-                    if (selection == 0) return 0;
-                    if (selection >= 1 && selection <= items.size()) {
-                        return selection;
+                    if (selection == 0) return null;
+                    if (selection > start && selection <= start + items.size()) {
+                        return items.get(selection - start - 1);
+                    }
+                    if (selection >= 1 && selection <= totalItems) {
+                        List<String> selected = diaryManager.page(selection - 1, 1);
+                        if (!selected.isEmpty()) {
+                            return selected.get(0);
+                        }
+                    }
+                } catch (NumberFormatException e) {
+                    // Not a number, continue pagination
+                }
+            }
+        }
+        return null;
+    }
+    
+    // As displayPaginatedList, for a date range whose size is not known up front
+    private String displayEntriesBetween(LocalDateTime from, LocalDateTime to, String prompt) throws IOException {
+        int pageSize = diaryManager.getPageSize();
+        int start = 0;
+        
+        while (true) {
+            // One extra tells whether there is a next page
+            List<String> items = diaryManager.pageBetween(from, to, start, pageSize + 1);
+            boolean more = items.size() > pageSize;
+            if (more) {
+                items = items.subList(0, pageSize);
+            }
+            if (items.isEmpty()) {
+                System.out.println("No entries in that period.");
+                return null;
+            }
+            
+            System.out.println("\nEntries " + (start + 1) + "-" + (start + items.size()) + " in that period");
+            System.out.println("---");
+            
+            for (int i = 0; i < items.size(); i++) {
+                System.out.println((start + i + 1) + ". " + items.get(i));
+            }
+            
+            System.out.println("\n[N]ext page, [P]revious page, " + prompt);
+            System.out.print("Your choice: ");
+            String choice = scanner.nextLine().toLowerCase();
+            
+            if (choice.equals("n") && more) {
+                start += pageSize;
+            } else if (choice.equals("p") && start > 0) {
+                start -= pageSize;
+            } else {
+                try {
+                    int selection = Integer.parseInt(choice);
+                    if (selection == 0) return null;
+                    if (selection > start && selection <= start + items.size()) {
+                        return items.get(selection - start - 1);
                     }
                 } catch (NumberFormatException e) {
                     // Not a number, continue pagination
                 }
             }
         }
-        return 0;
     }
     
     private void exitApplication() {
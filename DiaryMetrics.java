@@ -0,0 +1,203 @@
+package com.diary;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for the diary's operations, recorded by
+ * {@link DiaryManager} and {@link DiaryFileHandler} and shown on the
+ * statistics screen or exported by {@link MetricsExporter}. Everything is
+ * cumulative since the application started.
+ */
+class DiaryMetrics implements DiaryMetricsMBean {
+    private static final double NANOS_PER_MILLI = 1_000_000.0;
+    
+    interface Operation<T> {
+        T run() throws IOException;
+    }
+    
+    interface VoidOperation {
+        void run() throws IOException;
+    }
+    
+    // Sorted, so reports list the operations in a stable order
+    private final Map<String, LatencyHistogram> latencies = new ConcurrentSkipListMap<>();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder filesRead = new LongAdder();
+    private final LongAdder filesWritten = new LongAdder();
+    private final LongAdder filesDeleted = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final LongAdder indexHits = new LongAdder();
+    private final LongAdder indexMisses = new LongAdder();
+    
+    /** Runs the operation and records how long it took, even if it fails. */
+    <T> T time(String operation, Operation<T> body) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return body.run();
+        } finally {
+            record(operation, System.nanoTime() - start);
+        }
+    }
+    
+    void time(String operation, VoidOperation body) throws IOException {
+        long start = System.nanoTime();
+        try {
+            body.run();
+        } finally {
+            record(operation, System.nanoTime() - start);
+        }
+    }
+    
+    void record(String operation, long nanos) {
+        latencies.computeIfAbsent(operation, name -> new LatencyHistogram()).record(nanos);
+    }
+    
+    void fileRead(long bytes) {
+        filesRead.increment();
+        bytesRead.add(bytes);
+    }
+    
+    void filesWritten(int files, long bytes) {
+        filesWritten.add(files);
+        bytesWritten.add(bytes);
+    }
+    
+    void fileDeleted() {
+        filesDeleted.increment();
+    }
+    
+    void cacheLookup(boolean hit) {
+        (hit ? cacheHits : cacheMisses).increment();
+    }
+    
+    /** A search narrowed by the index (hit) or one that had to scan every entry (miss). */
+    void indexLookup(boolean hit) {
+        (hit ? indexHits : indexMisses).increment();
+    }
+    
+    @Override
+    public String[] getOperations() {
+        return latencies.keySet().toArray(new String[0]);
+    }
+    
+    @Override
+    public String[] getLatencySummary() {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            lines.add(String.format("%s count=%d mean=%.3f p50=%.3f p90=%.3f p99=%.3f max=%.3f",
+                entry.getKey(), histogram.getCount(), histogram.getMean() / NANOS_PER_MILLI,
+                millis(histogram.percentile(0.50)), millis(histogram.percentile(0.90)),
+                millis(histogram.percentile(0.99)), millis(histogram.getMax())));
+        }
+        return lines.toArray(new String[0]);
+    }
+    
+    @Override
+    public long getOperationCount(String operation) {
+        LatencyHistogram histogram = latencies.get(operation);
+        return histogram == null ? 0 : histogram.getCount();
+    }
+    
+    @Override
+    public double getLatencyPercentileMillis(String operation, double percentile) {
+        LatencyHistogram histogram = latencies.get(operation);
+        return histogram == null ? 0 : millis(histogram.percentile(percentile / 100));
+    }
+    
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+    
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+    
+    @Override
+    public long getFilesRead() {
+        return filesRead.sum();
+    }
+    
+    @Override
+    public long getFilesWritten() {
+        return filesWritten.sum();
+    }
+    
+    @Override
+    public long getFilesDeleted() {
+        return filesDeleted.sum();
+    }
+    
+    @Override
+    public double getCacheHitRatio() {
+        return ratio(cacheHits.sum(), cacheMisses.sum());
+    }
+    
+    @Override
+    public double getIndexHitRatio() {
+        return ratio(indexHits.sum(), indexMisses.sum());
+    }
+    
+    /** A table for the statistics screen. */
+    String report() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-22s %8s %9s %9s %9s %9s %9s%n",
+            "Latency (ms)", "count", "mean", "p50", "p90", "p99", "max"));
+        for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            report.append(String.format("  %-20s %8d %9.3f %9.3f %9.3f %9.3f %9.3f%n",
+                entry.getKey(), histogram.getCount(), histogram.getMean() / NANOS_PER_MILLI,
+                millis(histogram.percentile(0.50)), millis(histogram.percentile(0.90)),
+                millis(histogram.percentile(0.99)), millis(histogram.getMax())));
+        }
+        report.append(String.format("Read: %d files, %d KB; written: %d files, %d KB; deleted: %d files%n",
+            getFilesRead(), getBytesRead() / 1024, getFilesWritten(), getBytesWritten() / 1024, getFilesDeleted()));
+        report.append(String.format("Cache hit ratio: %.1f%% of %d reads; index hit ratio: %.1f%% of %d searches",
+            100 * getCacheHitRatio(), cacheHits.sum() + cacheMisses.sum(),
+            100 * getIndexHitRatio(), indexHits.sum() + indexMisses.sum()));
+        return report.toString();
+    }
+    
+    /** Every value by name, in a stable order, for the metrics file. */
+    Map<String, Object> snapshot() {
+        Map<String, Object> values = new LinkedHashMap<>();
+        for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+            String prefix = "latency." + entry.getKey() + ".";
+            LatencyHistogram histogram = entry.getValue();
+            values.put(prefix + "count", histogram.getCount());
+            values.put(prefix + "meanMs", histogram.getMean() / NANOS_PER_MILLI);
+            values.put(prefix + "p50Ms", millis(histogram.percentile(0.50)));
+            values.put(prefix + "p90Ms", millis(histogram.percentile(0.90)));
+            values.put(prefix + "p99Ms", millis(histogram.percentile(0.99)));
+            values.put(prefix + "p999Ms", millis(histogram.percentile(0.999)));
+            values.put(prefix + "maxMs", millis(histogram.getMax()));
+        }
+        values.put("io.bytesRead", getBytesRead());
+        values.put("io.bytesWritten", getBytesWritten());
+        values.put("io.filesRead", getFilesRead());
+        values.put("io.filesWritten", getFilesWritten());
+        values.put("io.filesDeleted", getFilesDeleted());
+        values.put("cache.hits", cacheHits.sum());
+        values.put("cache.misses", cacheMisses.sum());
+        values.put("cache.hitRatio", getCacheHitRatio());
+        values.put("index.hits", indexHits.sum());
+        values.put("index.misses", indexMisses.sum());
+        values.put("index.hitRatio", getIndexHitRatio());
+        return values;
+    }
+    
+    private static double millis(long nanos) {
+        return nanos / NANOS_PER_MILLI;
+    }
+    
+    private static double ratio(long hits, long misses) {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,28 @@
+package com.diary;
+
+/** Management interface of {@link DiaryMetrics}, published over JMX. */
+public interface DiaryMetricsMBean {
+    String[] getOperations();
+    
+    /** One line per operation: count, mean and percentiles in milliseconds. */
+    String[] getLatencySummary();
+    
+    long getOperationCount(String operation);
+    
+    /** The given percentile (0-100) of an operation's latency, in milliseconds. */
+    double getLatencyPercentileMillis(String operation, double percentile);
+    
+    long getBytesRead();
+    
+    long getBytesWritten();
+    
+    long getFilesRead();
+    
+    long getFilesWritten();
+    
+    long getFilesDeleted();
+    
+    double getCacheHitRatio();
+    
+    double getIndexHitRatio();
+}
\ No newline at end of file
@@ -0,0 +1,386 @@
+package com.diary;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HTTP/JSON access to a diary, on the JDK's built-in server and bound to
+ * localhost only, as nothing is authenticated:
+ *
+ * <pre>
+ * GET    /entries?offset=&amp;limit=&amp;from=&amp;to=&amp;content=true   entries, newest first
+ * POST   /entries                {"timestamp": ..., "content": ...}   new entry, timestamp defaults to now
+ * GET    /entries/{filename}     one entry
+ * PUT    /entries/{filename}     {"content": ...}                     creates or replaces the entry
+ * DELETE /entries/{filename}
+ * GET    /search?q=&amp;from=&amp;to=                                     matches, as the search settings say
+ * GET    /backups                backup names
+ * POST   /backups                creates a backup
+ * </pre>
+ *
+ * Timestamps are {@code yyyy-MM-ddTHH:mm:ss}, and {@code from} and {@code to}
+ * may also be a bare {@code yyyy-MM-dd}; {@code from} is inclusive and
+ * {@code to} exclusive. Listings and search results are streamed a page at
+ * a time as they are produced, so a long response never has to fit in
+ * memory at once; only a search's candidate names are listed up front.
+ *
+ * Each request runs on its own virtual thread when the JDK has them (21+),
+ * otherwise on a fixed pool of platform threads.
+ */
+class DiaryServer {
+    private static final int DEFAULT_LIST_LIMIT = 100;
+    private static final int PAGE_SIZE = 500;
+    // Queued connections the OS may hold while all handlers are busy
+    private static final int BACKLOG = 4096;
+    private static final int FALLBACK_THREADS = 256;
+    private static final int MAX_BODY_BYTES = 1024 * 1024;
+    
+    private final DiaryManager manager;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final String executorKind;
+    
+    DiaryServer(DiaryManager manager, int port) throws IOException {
+        this.manager = manager;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), BACKLOG);
+        ExecutorService virtual = newVirtualThreadExecutor();
+        this.executor = virtual != null ? virtual : newThreadPool();
+        this.executorKind = virtual != null ? "virtual threads" : FALLBACK_THREADS + " platform threads";
+        server.setExecutor(executor);
+        server.createContext("/entries", exchange -> handle(exchange, this::entries));
+        server.createContext("/search", exchange -> handle(exchange, this::search));
+        server.createContext("/backups", exchange -> handle(exchange, this::backups));
+    }
+    
+    void start() {
+        server.start();
+        System.out.println("Diary API listening on http://localhost:" + getPort() + "/ (" + executorKind + ")");
+    }
+    
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+    
+    /** Stops accepting requests and gives running ones a moment to finish. */
+    void stop() {
+        server.stop(1);
+        executor.shutdown();
+    }
+    
+    // Executors.newVirtualThreadPerTaskExecutor() is only there from JDK 21 on; null before
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+    
+    private static ExecutorService newThreadPool() {
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(FALLBACK_THREADS, r -> {
+            Thread thread = new Thread(r, "diary-http-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    private interface Handler {
+        void handle(HttpExchange exchange) throws IOException;
+    }
+    
+    /** A request that cannot be served, answered with its status and message. */
+    private static final class ApiException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        final int status;
+        
+        ApiException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+    
+    private static void handle(HttpExchange exchange, Handler handler) {
+        try {
+            handler.handle(exchange);
+        } catch (ApiException e) {
+            sendError(exchange, e.status, e.getMessage());
+        } catch (FileNotFoundException e) {
+            sendError(exchange, 404, e.getMessage());
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            sendError(exchange, 400, e.getMessage());
+        } catch (IOException | RuntimeException e) {
+            sendError(exchange, 500, e.getMessage());
+        } finally {
+            exchange.close();
+        }
+    }
+    
+    private void entries(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        String filename = exchange.getRequestURI().getPath().substring("/entries".length());
+        if (filename.isEmpty() || filename.equals("/")) {
+            switch (method) {
+                case "GET" -> listEntries(exchange);
+                case "POST" -> createEntry(exchange);
+                default -> throw notAllowed(exchange, "GET, POST");
+            }
+            return;
+        }
+        filename = filename.substring(1);
+        LocalDateTime timestamp = timestampOf(filename);
+        switch (method) {
+            case "GET" -> sendJson(exchange, 200, entryJson(filename, timestamp, manager.readEntry(filename)));
+            case "PUT" -> {
+                String content = requiredField(readBody(exchange), "content");
+                manager.saveEntry(new DiaryEntry(timestamp, content));
+                sendJson(exchange, 200, entryJson(filename, timestamp, content));
+            }
+            case "DELETE" -> {
+                if (!manager.deleteEntry(filename)) {
+                    throw new ApiException(404, "Entry not found: " + filename);
+                }
+                exchange.sendResponseHeaders(204, -1);
+            }
+            default -> throw notAllowed(exchange, "GET, PUT, DELETE");
+        }
+    }
+    
+    private void listEntries(HttpExchange exchange) throws IOException {
+        Map<String, String> query = query(exchange);
+        int offset = intParameter(query, "offset", 0);
+        int limit = intParameter(query, "limit", DEFAULT_LIST_LIMIT);
+        boolean withContent = Boolean.parseBoolean(query.get("content"));
+        LocalDateTime from = dateParameter(query, "from");
+        LocalDateTime to = dateParameter(query, "to");
+        
+        boolean inRange = from != null || to != null;
+        JsonArrayWriter out = new JsonArrayWriter(exchange);
+        // Paged, so a listing of the whole diary holds a page at a time
+        int written = 0;
+        while (written < limit) {
+            int size = Math.min(PAGE_SIZE, limit - written);
+            List<String> page = inRange ? manager.pageBetween(from, to, offset + written, size)
+                : manager.page(offset + written, size);
+            for (String filename : page) {
+                writeListed(out, filename, withContent);
+            }
+            written += page.size();
+            if (page.isEmpty()) {
+                break;
+            }
+        }
+        out.finish();
+    }
+    
+    private void writeListed(JsonArrayWriter out, String filename, boolean withContent) throws IOException {
+        LocalDateTime timestamp = manager.extractTimestamp(filename);
+        if (!withContent) {
+            out.write(entryJson(filename, timestamp, null));
+            return;
+        }
+        try {
+            out.write(entryJson(filename, timestamp, manager.readEntry(filename)));
+        } catch (FileNotFoundException e) {
+            // Deleted while listing
+        }
+    }
+    
+    private void createEntry(HttpExchange exchange) throws IOException {
+        Map<String, String> fields = readBody(exchange);
+        String content = requiredField(fields, "content");
+        String timestamp = fields.get("timestamp");
+        DiaryEntry entry = timestamp == null ? new DiaryEntry(content)
+            : new DiaryEntry(LocalDateTime.parse(timestamp).withNano(0), content);
+        if (!manager.createEntry(entry)) {
+            throw new ApiException(409, "An entry already exists at " + entry.getFormattedTimestamp());
+        }
+        exchange.getResponseHeaders().set("Location", "/entries/" + entry.getFilename());
+        sendJson(exchange, 201, entryJson(entry.getFilename(), entry.getTimestamp(), null));
+    }
+    
+    private void search(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            throw notAllowed(exchange, "GET");
+        }
+        Map<String, String> query = query(exchange);
+        String keyword = query.get("q");
+        if (keyword == null || keyword.isBlank()) {
+            throw new IllegalArgumentException("Missing query parameter q");
+        }
+        JsonArrayWriter out = new JsonArrayWriter(exchange);
+        manager.findEntries(keyword, dateParameter(query, "from"), dateParameter(query, "to"), PAGE_SIZE, results -> {
+            for (DiaryEntry entry : results) {
+                out.write(entryJson(entry.getFilename(), entry.getTimestamp(), entry.getContent()));
+            }
+        });
+        out.finish();
+    }
+    
+    private void backups(HttpExchange exchange) throws IOException {
+        switch (exchange.getRequestMethod()) {
+            case "GET" -> {
+                JsonArrayWriter out = new JsonArrayWriter(exchange);
+                for (String backup : manager.listBackups()) {
+                    out.write(Json.quote(backup));
+                }
+                out.finish();
+            }
+            case "POST" -> {
+                manager.createBackup();
+                sendJson(exchange, 201, Json.object(Map.of("status", "created")));
+            }
+            default -> throw notAllowed(exchange, "GET, POST");
+        }
+    }
+    
+    private static String entryJson(String filename, LocalDateTime timestamp, String content) {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put("filename", filename);
+        fields.put("timestamp", timestamp.format(JsonLinesTransfer.TIMESTAMP_FORMATTER));
+        if (content != null) {
+            fields.put("content", content);
+        }
+        return Json.object(fields);
+    }
+    
+    // Only names the diary itself would give an entry, which also keeps paths out
+    private static LocalDateTime timestampOf(String filename) {
+        try {
+            return DiaryEntry.timestampOf(filename);
+        } catch (DateTimeParseException e) {
+            throw new ApiException(404, "No such entry: " + filename);
+        }
+    }
+    
+    private static ApiException notAllowed(HttpExchange exchange, String allowed) {
+        exchange.getResponseHeaders().set("Allow", allowed);
+        return new ApiException(405, "Method not allowed, use " + allowed);
+    }
+    
+    private static Map<String, String> readBody(HttpExchange exchange) throws IOException {
+        byte[] body = exchange.getRequestBody().readNBytes(MAX_BODY_BYTES + 1);
+        if (body.length > MAX_BODY_BYTES) {
+            throw new ApiException(413, "Request body over " + MAX_BODY_BYTES + " bytes");
+        }
+        return Json.parseObject(new String(body, StandardCharsets.UTF_8));
+    }
+    
+    private static String requiredField(Map<String, String> fields, String name) {
+        String value = fields.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing field \"" + name + "\"");
+        }
+        return value;
+    }
+    
+    private static Map<String, String> query(HttpExchange exchange) {
+        Map<String, String> parameters = new HashMap<>();
+        URI uri = exchange.getRequestURI();
+        String raw = uri.getRawQuery();
+        if (raw == null) {
+            return parameters;
+        }
+        for (String pair : raw.split("&")) {
+            int equals = pair.indexOf('=');
+            String name = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "" : pair.substring(equals + 1);
+            parameters.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return parameters;
+    }
+    
+    private static int intParameter(Map<String, String> query, String name, int defaultValue) {
+        String value = query.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed < 0) {
+                throw new IllegalArgumentException(name + " must not be negative");
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be a number");
+        }
+    }
+    
+    private static LocalDateTime dateParameter(Map<String, String> query, String name) {
+        String value = query.get(name);
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+        // A bare date means the start of that day
+        return value.length() == 10 ? LocalDate.parse(value).atStartOfDay() : LocalDateTime.parse(value);
+    }
+    
+    private static void sendJson(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+    
+    private static void sendError(HttpExchange exchange, int status, String message) {
+        try {
+            sendJson(exchange, status, Json.object(Map.of("error", String.valueOf(message))));
+        } catch (IOException | IllegalStateException e) {
+            // Headers already sent while streaming, or the client went away
+        }
+    }
+    
+    /**
+     * Streams a JSON array with chunked encoding. Nothing is sent until the
+     * first element, so errors before it still get a proper status; an error
+     * after it leaves the array unterminated, which clients notice.
+     */
+    private static final class JsonArrayWriter {
+        private final HttpExchange exchange;
+        private Writer writer;
+        
+        JsonArrayWriter(HttpExchange exchange) {
+            this.exchange = exchange;
+        }
+        
+        void write(String element) throws IOException {
+            if (writer == null) {
+                open();
+                writer.write('[');
+            } else {
+                writer.write(',');
+            }
+            writer.write(element);
+        }
+        
+        private void open() throws IOException {
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(200, 0);
+            writer = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8), 16 * 1024);
+        }
+        
+        void finish() throws IOException {
+            if (writer == null) {
+                open();
+                writer.write('[');
+            }
+            writer.write(']');
+            writer.flush();
+        }
+    }
+}
\ No newline at end of file
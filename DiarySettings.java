@@ -0,0 +1,161 @@
+package com.diary;
+
+import java.nio.charset.Charset;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * The settings of a {@link DiaryConfig} parsed into typed fields. Instances
+ * are immutable; the config builds a new one whenever a setting changes, so
+ * readers never parse strings and always see a consistent set of values.
+ */
+final class DiarySettings {
+    interface Listener {
+        void settingChanged(String key, DiarySettings settings);
+    }
+    
+    // Changing one of these means reopening the file handler
+    private static final Set<String> STORAGE_SETTINGS = Set.of("storageMode", "entryLayout", "entryCompression",
+        "entryCompressionLevel", "segmentSizeMB", "readMode",
+        "searchThreads", "backupMode", "backupCompression", "backupThreads", "backupRetention",
+        "journalSync", "journalSyncMillis");
+    
+    private final boolean autoBackup;
+    private final int autoBackupInterval;
+    private final int maxEntriesPerPage;
+    private final Charset defaultEncoding;
+    private final boolean segmentStorage;
+    private final boolean shardedLayout;
+    private final boolean entryCompression;
+    private final int entryCompressionLevel;
+    private final long segmentSizeBytes;
+    private final boolean mappedReads;
+    private final int searchThreads;
+    private final boolean rankedSearch;
+    private final int searchResults;
+    private final long cacheSizeBytes;
+    private final String backupMode;
+    private final int backupCompression;
+    private final int backupThreads;
+    private final int backupRetention;
+    private final String journalSync;
+    private final long journalSyncMillis;
+    private final boolean metricsToFile;
+    private final boolean metricsToJmx;
+    private final String metricsFile;
+    private final int metricsIntervalSeconds;
+    
+    /** Parses and validates every setting, throwing for the first invalid one. */
+    DiarySettings(Function<String, String> values) {
+        this.autoBackup = booleanValue("autoBackup", values);
+        this.autoBackupInterval = intValue("autoBackupInterval", values, 1, Integer.MAX_VALUE);
+        this.maxEntriesPerPage = intValue("maxEntriesPerPage", values, 1, 1000);
+        this.defaultEncoding = charsetValue("defaultEncoding", values);
+        this.segmentStorage = choice("storageMode", values, "files", "segments").equals("segments");
+        this.shardedLayout = choice("entryLayout", values, "flat", "sharded").equals("sharded");
+        this.entryCompression = choice("entryCompression", values, "none", "deflate").equals("deflate");
+        this.entryCompressionLevel = intValue("entryCompressionLevel", values, 1, 9);
+        // Segments are memory-mapped whole, which caps them below 2 GB
+        this.segmentSizeBytes = intValue("segmentSizeMB", values, 1, 2047) * 1024L * 1024;
+        this.mappedReads = choice("readMode", values, "standard", "mapped").equals("mapped");
+        this.searchThreads = intValue("searchThreads", values, 0, 1024);
+        this.rankedSearch = choice("searchMode", values, "ranked", "substring").equals("ranked");
+        this.searchResults = intValue("searchResults", values, 1, 1000);
+        this.cacheSizeBytes = intValue("cacheSizeMB", values, 0, 1 << 20) * 1024L * 1024;
+        this.backupMode = choice("backupMode", values, "full", "parallel", "incremental", "dedup");
+        this.backupCompression = "store".equals(values.apply("backupCompression"))
+            ? ParallelZipWriter.STORE : intValue("backupCompression", values, 0, 9);
+        this.backupThreads = intValue("backupThreads", values, 0, 1024);
+        this.backupRetention = intValue("backupRetention", values, 0, Integer.MAX_VALUE);
+        this.journalSync = choice("journalSync", values, "commit", "interval", "none");
+        this.journalSyncMillis = intValue("journalSyncMillis", values, 1, 60_000);
+        String metricsExport = choice("metricsExport", values, "none", "file", "jmx", "both");
+        this.metricsToFile = metricsExport.equals("file") || metricsExport.equals("both");
+        this.metricsToJmx = metricsExport.equals("jmx") || metricsExport.equals("both");
+        this.metricsFile = pathValue("metricsFile", values);
+        this.metricsIntervalSeconds = intValue("metricsIntervalSeconds", values, 1, 86_400);
+    }
+    
+    static boolean affectsStorage(String key) {
+        return STORAGE_SETTINGS.contains(key);
+    }
+    
+    boolean isAutoBackup() { return autoBackup; }
+    int getAutoBackupInterval() { return autoBackupInterval; }
+    int getMaxEntriesPerPage() { return maxEntriesPerPage; }
+    Charset getDefaultEncoding() { return defaultEncoding; }
+    boolean isSegmentStorage() { return segmentStorage; }
+    /** Whether entry files go in yyyy/MM subdirectories rather than all in one. */
+    boolean isShardedLayout() { return shardedLayout; }
+    boolean isEntryCompression() { return entryCompression; }
+    int getEntryCompressionLevel() { return entryCompressionLevel; }
+    long getSegmentSizeBytes() { return segmentSizeBytes; }
+    boolean isMappedReads() { return mappedReads; }
+    int getSearchThreads() { return searchThreads; }
+    boolean isRankedSearch() { return rankedSearch; }
+    int getSearchResults() { return searchResults; }
+    long getCacheSizeBytes() { return cacheSizeBytes; }
+    String getBackupMode() { return backupMode; }
+    /** Deflater level, or {@link ParallelZipWriter#STORE}. */
+    int getBackupCompression() { return backupCompression; }
+    int getBackupThreads() { return backupThreads; }
+    int getBackupRetention() { return backupRetention; }
+    String getJournalSync() { return journalSync; }
+    long getJournalSyncMillis() { return journalSyncMillis; }
+    boolean isMetricsToFile() { return metricsToFile; }
+    boolean isMetricsToJmx() { return metricsToJmx; }
+    String getMetricsFile() { return metricsFile; }
+    int getMetricsIntervalSeconds() { return metricsIntervalSeconds; }
+    
+    private static boolean booleanValue(String key, Function<String, String> values) {
+        return Boolean.parseBoolean(choice(key, values, "true", "false"));
+    }
+    
+    private static int intValue(String key, Function<String, String> values, int min, int max) {
+        String value = values.apply(key);
+        int parsed;
+        try {
+            parsed = Integer.parseInt(value == null ? "" : value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(key + " must be a whole number, not '" + value + "'");
+        }
+        if (parsed < min || parsed > max) {
+            throw new IllegalArgumentException(key + " must be between " + min + " and " + max);
+        }
+        return parsed;
+    }
+    
+    private static String choice(String key, Function<String, String> values, String... options) {
+        String value = values.apply(key);
+        for (String option : options) {
+            if (option.equalsIgnoreCase(value == null ? "" : value.trim())) {
+                return option;
+            }
+        }
+        throw new IllegalArgumentException(key + " must be one of " + String.join(", ", options));
+    }
+    
+    private static String pathValue(String key, Function<String, String> values) {
+        String value = values.apply(key);
+        try {
+            if (value == null || value.isBlank()) {
+                throw new InvalidPathException(String.valueOf(value), "empty path");
+            }
+            Paths.get(value);
+        } catch (InvalidPathException e) {
+            throw new IllegalArgumentException(key + " is not a valid path: '" + value + "'");
+        }
+        return value.trim();
+    }
+    
+    private static Charset charsetValue(String key, Function<String, String> values) {
+        String value = values.apply(key);
+        try {
+            return Charset.forName(value);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(key + " is not a supported encoding: '" + value + "'");
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,98 @@
+package com.diary;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Exclusive lock on an entries directory, held through an OS file lock on
+ * {@code diary.lock} so that two running copies of the app cannot write the
+ * same entries, index and journal at once. The lock goes away with the
+ * process, so a crash never leaves the directory locked.
+ */
+class DirectoryLock implements Closeable {
+    static final String LOCK_FILE = "diary.lock";
+    // Lock files held by this process. Closing any channel to a locked file
+    // drops the process's lock on it, so a second open must be refused
+    // before it touches the file.
+    private static final Set<Path> HELD = ConcurrentHashMap.newKeySet();
+    
+    private final Path path;
+    private final FileChannel channel;
+    private final FileLock lock;
+    
+    private DirectoryLock(Path path, FileChannel channel, FileLock lock) {
+        this.path = path;
+        this.channel = channel;
+        this.lock = lock;
+    }
+    
+    /** @throws IOException if another process, or another handler in this one, holds the directory */
+    static DirectoryLock acquire(Path dir) throws IOException {
+        Path path = dir.toRealPath().resolve(LOCK_FILE);
+        if (!HELD.add(path)) {
+            throw new IOException("Diary directory " + dir + " is already open in this program");
+        }
+        FileChannel channel = null;
+        FileLock lock = null;
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+            lock = channel.tryLock();
+        } catch (IOException | RuntimeException e) {
+            release(path, channel);
+            throw e;
+        }
+        if (lock == null) {
+            String owner = readOwner(channel);
+            release(path, channel);
+            throw new IOException("Diary directory " + dir + " is in use by another program"
+                + (owner.isEmpty() ? "" : " (process " + owner + ")"));
+        }
+        try {
+            // Tells whoever finds the directory locked who has it
+            channel.truncate(0);
+            channel.write(ByteBuffer.wrap(String.valueOf(ProcessHandle.current().pid()).getBytes(StandardCharsets.UTF_8)), 0);
+        } catch (IOException | RuntimeException e) {
+            // Closing the channel drops the lock as well
+            release(path, channel);
+            throw e;
+        }
+        return new DirectoryLock(path, channel, lock);
+    }
+    
+    private static String readOwner(FileChannel channel) {
+        try {
+            ByteBuffer owner = ByteBuffer.allocate(32);
+            channel.read(owner, 0);
+            return new String(owner.array(), 0, owner.position(), StandardCharsets.UTF_8).trim();
+        } catch (IOException e) {
+            // Some platforms refuse to read a file locked by someone else
+            return "";
+        }
+    }
+    
+    private static void release(Path path, FileChannel channel) throws IOException {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } finally {
+            HELD.remove(path);
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        try {
+            lock.release();
+        } finally {
+            release(path, channel);
+        }
+    }
+}
\ No newline at end of file
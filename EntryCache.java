@@ -0,0 +1,111 @@
+package com.diary;
+
+import java.util.*;
+
+/**
+ * LRU cache of entry contents bounded by the approximate memory they use
+ * rather than by the number of entries.
+ *
+ * A read that misses takes a {@link #stamp()} before reading the entry and
+ * hands it to {@link #put(String, String, long)}, which drops the content
+ * if the entry was invalidated in between: the read may have seen the
+ * entry from before the write that invalidated it.
+ */
+class EntryCache {
+    // Rough per-entry cost of the map node, the key and the String headers
+    private static final long ENTRY_OVERHEAD = 128;
+    private static final int INVALIDATION_SLOTS = 64;
+    
+    private final LinkedHashMap<String, String> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // Last invalidation per slot of filenames, which keeps this bounded at
+    // the cost of a put now and then dropped for another entry's write
+    private final long[] invalidated = new long[INVALIDATION_SLOTS];
+    private long invalidations;
+    private long maxBytes;
+    private long currentBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    
+    EntryCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+    
+    synchronized String get(String filename) {
+        String content = entries.get(filename);
+        if (content == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return content;
+    }
+    
+    synchronized void resize(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evictOverflow();
+    }
+    
+    synchronized long stamp() {
+        return invalidations;
+    }
+    
+    /** Caches content read after {@code stamp} was taken, unless the entry changed since. */
+    synchronized void put(String filename, String content, long stamp) {
+        if (invalidated[slotOf(filename)] > stamp) {
+            return;
+        }
+        store(filename, content);
+    }
+    
+    private void store(String filename, String content) {
+        long size = sizeOf(filename, content);
+        if (size > maxBytes) {
+            return;
+        }
+        String previous = entries.put(filename, content);
+        if (previous != null) {
+            currentBytes -= sizeOf(filename, previous);
+        }
+        currentBytes += size;
+        evictOverflow();
+    }
+    
+    private void evictOverflow() {
+        Iterator<Map.Entry<String, String>> eldest = entries.entrySet().iterator();
+        while (currentBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, String> entry = eldest.next();
+            currentBytes -= sizeOf(entry.getKey(), entry.getValue());
+            eldest.remove();
+            evictions++;
+        }
+    }
+    
+    synchronized void invalidate(String filename) {
+        invalidated[slotOf(filename)] = ++invalidations;
+        String previous = entries.remove(filename);
+        if (previous != null) {
+            currentBytes -= sizeOf(filename, previous);
+        }
+    }
+    
+    synchronized void clear() {
+        Arrays.fill(invalidated, ++invalidations);
+        entries.clear();
+        currentBytes = 0;
+    }
+    
+    private static int slotOf(String filename) {
+        return Math.floorMod(filename.hashCode(), INVALIDATION_SLOTS);
+    }
+    
+    private static long sizeOf(String filename, String content) {
+        return ENTRY_OVERHEAD + 2L * (filename.length() + content.length());
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return String.format("%d hits, %d misses, %d evictions (%d entries, %d/%d KB)",
+            hits, misses, evictions, entries.size(), currentBytes / 1024, maxBytes / 1024);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,114 @@
+package com.diary;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Moves entry files into the layout their {@link FileEntryStore} writes,
+ * one file at a time. Each move is an atomic rename and the store finds
+ * entries in either layout, so the diary stays usable while it runs; it
+ * can be run in the background of the app or stand-alone with
+ * {@code java com.diary.EntryLayoutMigration <entries dir> flat|sharded}
+ * (then set {@code entryLayout} to match, so new entries follow).
+ */
+class EntryLayoutMigration {
+    private final FileEntryStore store;
+    private final StripedLock entryLocks;
+    private final Consumer<String> onMoved;
+    private volatile long total;
+    private volatile long moved;
+    private volatile boolean cancelled;
+    private volatile String status = "not started";
+    private Thread thread;
+    
+    /**
+     * @param entryLocks the locks writers of the store take, held for each move
+     * @param onMoved    told about every entry after it was moved, with the entry still locked
+     */
+    EntryLayoutMigration(FileEntryStore store, StripedLock entryLocks, Consumer<String> onMoved) {
+        this.store = store;
+        this.entryLocks = entryLocks;
+        this.onMoved = onMoved;
+    }
+    
+    /** Moves every misplaced entry on the calling thread and returns how many were moved. */
+    long run() throws IOException {
+        List<String> entries = store.list();
+        total = entries.size();
+        moved = 0;
+        status = "running";
+        for (String entry : entries) {
+            if (cancelled) {
+                status = "stopped after moving " + moved + " entries";
+                return moved;
+            }
+            StripedLock.Held held = entryLocks.lock(entry);
+            try {
+                if (store.relocate(entry)) {
+                    onMoved.accept(entry);
+                    moved++;
+                }
+            } finally {
+                held.release();
+            }
+        }
+        store.sync();
+        store.deleteEmptyShardDirs();
+        status = "done, moved " + moved + " of " + total + " entries";
+        return moved;
+    }
+    
+    /** Runs the migration on a background thread. */
+    synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(() -> {
+            try {
+                run();
+            } catch (IOException e) {
+                status = "failed after moving " + moved + " entries: " + e.getMessage();
+                System.err.println("Warning: Entry layout migration " + status);
+            }
+        }, "diary-layout-migration");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /** Stops a background run between two files and waits for it. */
+    synchronized void stop() {
+        cancelled = true;
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    String getStatus() {
+        return "running".equals(status) ? "moved " + moved + " of " + total + " entries" : status;
+    }
+    
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2 || !(args[1].equals("flat") || args[1].equals("sharded"))) {
+            System.err.println("Usage: EntryLayoutMigration <entries directory> flat|sharded");
+            System.exit(2);
+        }
+        Path dir = Paths.get(args[0]);
+        // Keeps the app out meanwhile, so one stripe is plenty
+        DirectoryLock lock = DirectoryLock.acquire(dir);
+        long moved;
+        long start = System.nanoTime();
+        try {
+            FileEntryStore store = new FileEntryStore(dir, args[1].equals("sharded"));
+            moved = new EntryLayoutMigration(store, new StripedLock(1), entry -> { }).run();
+        } finally {
+            lock.close();
+        }
+        System.out.printf("Moved %d entries to the %s layout in %.1f s%n", moved, args[1], (System.nanoTime() - start) / 1e9);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,56 @@
+package com.diary;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Storage backend for entry contents, addressed by the entry filename
+ * produced by {@link DiaryEntry#getFilename()}.
+ */
+interface EntryStore extends Closeable {
+    void write(String filename, byte[] content) throws IOException;
+    
+    default void writeAll(Map<String, byte[]> entries) throws IOException {
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            write(entry.getKey(), entry.getValue());
+        }
+    }
+    
+    /** Writes the new entry and drops the old one, as one change where the store supports it. */
+    default void replace(String oldFilename, String newFilename, byte[] content) throws IOException {
+        write(newFilename, content);
+        if (!oldFilename.equals(newFilename)) {
+            delete(oldFilename);
+        }
+    }
+    
+    /** Throws {@link FileNotFoundException} when the entry does not exist. */
+    byte[] read(String filename) throws IOException;
+    
+    /** Read-only view of the entry bytes backed by a memory mapping. */
+    ByteBuffer map(String filename) throws IOException;
+    
+    boolean delete(String filename) throws IOException;
+    
+    /** A value that changes whenever the entry is rewritten. */
+    long version(String filename) throws IOException;
+    
+    /**
+     * Bytes the entry takes in the store. Checked along with the version,
+     * it catches rewrites the version misses, like two in the same
+     * millisecond or a sync tool that keeps file times.
+     */
+    long size(String filename) throws IOException;
+    
+    /** Entry filenames in no particular order. */
+    List<String> list() throws IOException;
+    
+    long count() throws IOException;
+    
+    /** Makes every change written so far durable. */
+    void sync() throws IOException;
+    
+    @Override
+    void close() throws IOException;
+}
\ No newline at end of file
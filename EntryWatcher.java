@@ -0,0 +1,162 @@
+package com.diary;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the entries directory, and its year and month shards, for entry
+ * files added, changed or removed by other programs such as sync tools.
+ *
+ * Events are collected until the directory has been quiet for a moment, or
+ * for at most a second while it keeps changing, and then handed over as
+ * one batch of filenames. When the system drops events, or a watched
+ * directory goes away, the listener is asked to rescan instead.
+ */
+class EntryWatcher {
+    private static final long QUIET_MILLIS = 100;
+    private static final long MAX_DELAY_MILLIS = 1000;
+    private static final PathMatcher ENTRY_NAMES =
+        FileSystems.getDefault().getPathMatcher("glob:" + FileEntryStore.ENTRY_GLOB);
+    
+    interface Listener {
+        /** Entries that were created, modified or deleted; they may since have changed again. */
+        void entriesChanged(Set<String> filenames);
+        
+        /** Changes were lost, so everything has to be compared again. */
+        void rescanNeeded();
+    }
+    
+    private final Path entriesDir;
+    private final Listener listener;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> watched = new ConcurrentHashMap<>();
+    private final Thread thread;
+    private volatile long batches;
+    private volatile long changes;
+    private volatile long rescans;
+    
+    EntryWatcher(Path entriesDir, Listener listener) throws IOException {
+        this.entriesDir = entriesDir;
+        this.listener = listener;
+        this.watchService = entriesDir.getFileSystem().newWatchService();
+        try {
+            register(entriesDir, new HashSet<>());
+        } catch (IOException e) {
+            watchService.close();
+            throw e;
+        }
+        this.thread = new Thread(this::run, "diary-entry-watcher");
+        thread.setDaemon(true);
+    }
+    
+    /** Starts delivering events, including those since the watcher was created. */
+    void start() {
+        thread.start();
+    }
+    
+    String getStatus() {
+        return String.format("watching %d directories; %d entry events in %d batches, %d rescans",
+            watched.size(), changes, batches, rescans);
+    }
+    
+    void close() throws IOException {
+        thread.interrupt();
+        watchService.close();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private void run() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Set<String> changed = new LinkedHashSet<>();
+                boolean rescan = false;
+                long deadline = System.currentTimeMillis() + MAX_DELAY_MILLIS;
+                while (key != null) {
+                    rescan |= collect(key, changed);
+                    long remaining = deadline - System.currentTimeMillis();
+                    key = remaining <= 0 ? null
+                        : watchService.poll(Math.min(QUIET_MILLIS, remaining), TimeUnit.MILLISECONDS);
+                }
+                deliver(changed, rescan);
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Closed
+        }
+    }
+    
+    // Adds the entries named by the key's events; returns true when a rescan is needed
+    private boolean collect(WatchKey key, Set<String> changed) {
+        Path dir = watched.get(key);
+        boolean rescan = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                rescan = true;
+                continue;
+            }
+            Path name = (Path) event.context();
+            Path path = dir.resolve(name);
+            if (ENTRY_NAMES.matches(name)) {
+                changed.add(name.toString());
+            } else if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && isShardDir(path)) {
+                try {
+                    // Entries may have landed in the new shard before it was watched
+                    register(path, changed);
+                } catch (IOException e) {
+                    rescan = true;
+                }
+            }
+        }
+        if (!key.reset()) {
+            // The directory went away, possibly moved with entries still inside
+            watched.remove(key);
+            rescan = true;
+        }
+        return rescan;
+    }
+    
+    private void deliver(Set<String> changed, boolean rescan) {
+        try {
+            if (rescan) {
+                rescans++;
+                listener.rescanNeeded();
+            } else if (!changed.isEmpty()) {
+                batches++;
+                changes += changed.size();
+                listener.entriesChanged(changed);
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Warning: Could not apply outside changes to entries: " + e.getMessage());
+        }
+    }
+    
+    // Watches the directory and its shards, collecting the entries already in them
+    private void register(Path dir, Set<String> existing) throws IOException {
+        watched.put(dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), dir);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                if (isShardDir(path)) {
+                    register(path, existing);
+                } else if (!dir.equals(entriesDir) && ENTRY_NAMES.matches(path.getFileName())) {
+                    existing.add(path.getFileName().toString());
+                }
+            }
+        }
+    }
+    
+    // yyyy directly in the entries directory, MM inside one of those
+    private boolean isShardDir(Path path) {
+        String name = path.getFileName().toString();
+        int depth = path.getNameCount() - entriesDir.getNameCount();
+        return (depth == 1 && name.matches("\\d{4}") || depth == 2 && name.matches("\\d{2}"))
+            && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS);
+    }
+}
\ No newline at end of file
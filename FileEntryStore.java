@@ -0,0 +1,322 @@
+package com.diary;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * One file per entry, named after the entry itself. In the flat layout all
+ * entries sit in the entries directory; in the sharded layout each lives in
+ * a {@code yyyy/MM} subdirectory taken from its filename, so no directory
+ * grows beyond a month of entries.
+ *
+ * The layout only decides where entries are written. Entries are found in
+ * either place, so a diary keeps working while {@link EntryLayoutMigration}
+ * moves its files over.
+ */
+class FileEntryStore implements EntryStore {
+    static final String ENTRY_GLOB = "diary_*.txt";
+    
+    private interface PathOperation<T> {
+        T apply(Path path) throws IOException;
+    }
+    
+    private final Path entriesDir;
+    private final boolean sharded;
+    // Year and month directories seen so far, watched for outside changes
+    private final Set<Path> shardDirs = new ConcurrentSkipListSet<>();
+    // Entries written or deleted since the last sync
+    private final Set<String> dirty = new HashSet<>();
+    
+    FileEntryStore(Path entriesDir) throws IOException {
+        this(entriesDir, false);
+    }
+    
+    FileEntryStore(Path entriesDir, boolean sharded) throws IOException {
+        this.entriesDir = entriesDir;
+        this.sharded = sharded;
+        findShardDirs();
+    }
+    
+    boolean isSharded() {
+        return sharded;
+    }
+    
+    @Override
+    public void write(String filename, byte[] content) throws IOException {
+        Path path = pathOf(filename, sharded);
+        if (sharded && !shardDirs.contains(path.getParent())) {
+            createShardDir(path.getParent());
+        }
+        try {
+            Files.write(path, content);
+        } catch (NoSuchFileException e) {
+            if (!sharded) {
+                throw e;
+            }
+            // The shard was removed from outside since we created it
+            createShardDir(path.getParent());
+            Files.write(path, content);
+        }
+        markDirty(filename);
+    }
+    
+    @Override
+    public byte[] read(String filename) throws IOException {
+        return onEntry(filename, Files::readAllBytes);
+    }
+    
+    @Override
+    public ByteBuffer map(String filename) throws IOException {
+        return onEntry(filename, path -> {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        });
+    }
+    
+    @Override
+    public boolean delete(String filename) throws IOException {
+        boolean deleted = Files.deleteIfExists(pathOf(filename, sharded));
+        deleted |= Files.deleteIfExists(pathOf(filename, !sharded));
+        markDirty(filename);
+        return deleted;
+    }
+    
+    @Override
+    public long version(String filename) throws IOException {
+        return onEntry(filename, path -> Files.getLastModifiedTime(path).toMillis());
+    }
+    
+    @Override
+    public long size(String filename) throws IOException {
+        return onEntry(filename, Files::size);
+    }
+    
+    @Override
+    public List<String> list() throws IOException {
+        // An entry rewritten during a migration can briefly exist in both places
+        Set<String> entries = new LinkedHashSet<>();
+        listInto(entriesDir, entries);
+        findShardDirs();
+        for (Path dir : shardDirs) {
+            if (isMonthDir(dir)) {
+                listInto(dir, entries);
+            }
+        }
+        return new ArrayList<>(entries);
+    }
+    
+    @Override
+    public long count() throws IOException {
+        return list().size();
+    }
+    
+    /**
+     * Latest modification time of the entries directory and of every shard
+     * directory, which changes whenever an entry file is added or removed.
+     */
+    FileTime lastModified() throws IOException {
+        FileTime latest = Files.getLastModifiedTime(entriesDir);
+        for (Path dir : shardDirs) {
+            try {
+                FileTime modified = Files.getLastModifiedTime(dir);
+                if (modified.compareTo(latest) > 0) {
+                    latest = modified;
+                }
+            } catch (NoSuchFileException e) {
+                shardDirs.remove(dir);
+            }
+        }
+        return latest;
+    }
+    
+    /**
+     * Moves the entry to where the current layout keeps it. Returns false
+     * when it is already there or no longer exists. Callers hold the entry
+     * against writers, so none can land between the check and the move.
+     */
+    boolean relocate(String filename) throws IOException {
+        Path source = pathOf(filename, !sharded);
+        Path target = pathOf(filename, sharded);
+        if (!Files.exists(source)) {
+            return false;
+        }
+        if (Files.exists(target)) {
+            // Rewritten in the new place since the migration started; the old
+            // copy is stale. A rename would silently replace the new one.
+            Files.deleteIfExists(source);
+            markDirty(filename);
+            return true;
+        }
+        if (sharded) {
+            createShardDir(target.getParent());
+        }
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            return false; // Deleted meanwhile
+        }
+        markDirty(filename);
+        return true;
+    }
+    
+    /**
+     * Whether any entry still sits where the other layout keeps it, e.g.
+     * because a migration was interrupted by closing the app.
+     */
+    boolean hasMisplaced() throws IOException {
+        Set<String> entries = new HashSet<>();
+        if (sharded) {
+            listInto(entriesDir, entries);
+            for (String filename : entries) {
+                // Names too short for a shard stay in the entries directory
+                if (!pathOf(filename, true).equals(pathOf(filename, false))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        findShardDirs();
+        for (Path dir : shardDirs) {
+            if (isMonthDir(dir)) {
+                listInto(dir, entries);
+                if (!entries.isEmpty()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+    
+    /** Removes shard directories left empty, e.g. after migrating back to the flat layout. */
+    void deleteEmptyShardDirs() throws IOException {
+        List<Path> dirs = new ArrayList<>(shardDirs);
+        // Months sort after their year, so walking backwards empties months first
+        Collections.reverse(dirs);
+        for (Path dir : dirs) {
+            try {
+                Files.delete(dir);
+                shardDirs.remove(dir);
+            } catch (DirectoryNotEmptyException | NoSuchFileException e) {
+                // Still in use
+            }
+        }
+    }
+    
+    @Override
+    public void sync() throws IOException {
+        List<String> pending;
+        synchronized (dirty) {
+            pending = new ArrayList<>(dirty);
+            dirty.clear();
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+        Set<Path> dirs = new LinkedHashSet<>();
+        for (String filename : pending) {
+            Path path = pathOf(filename, sharded);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            } catch (NoSuchFileException e) {
+                // Deleted; syncing the directory below persists that
+            }
+            for (Path dir = path.getParent(); dir != null && dir.startsWith(entriesDir); dir = dir.getParent()) {
+                dirs.add(dir);
+            }
+            dirs.add(pathOf(filename, !sharded).getParent());
+        }
+        // Persists created and removed names; not every platform can open a directory
+        for (Path dir : dirs) {
+            try (FileChannel directory = FileChannel.open(dir, StandardOpenOption.READ)) {
+                directory.force(true);
+            } catch (IOException e) {
+                // Best effort
+            }
+        }
+    }
+    
+    // Entry names start with diary_yyyy_MM, which gives the shard
+    private Path pathOf(String filename, boolean inShard) {
+        if (!inShard || filename.length() < 13) {
+            return entriesDir.resolve(filename);
+        }
+        return entriesDir.resolve(filename.substring(6, 10)).resolve(filename.substring(11, 13)).resolve(filename);
+    }
+    
+    // Tries the layout's own place first, then the other one, then the first
+    // again in case a migration moved the file in between
+    private <T> T onEntry(String filename, PathOperation<T> operation) throws IOException {
+        Path preferred = pathOf(filename, sharded);
+        try {
+            return operation.apply(preferred);
+        } catch (NoSuchFileException e) {
+            // Not there (yet)
+        }
+        try {
+            return operation.apply(pathOf(filename, !sharded));
+        } catch (NoSuchFileException e) {
+            // Not there (any more)
+        }
+        try {
+            return operation.apply(preferred);
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException("Entry not found: " + filename);
+        }
+    }
+    
+    private void createShardDir(Path monthDir) throws IOException {
+        Files.createDirectories(monthDir);
+        shardDirs.add(monthDir.getParent());
+        shardDirs.add(monthDir);
+    }
+    
+    private static void listInto(Path dir, Set<String> entries) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, ENTRY_GLOB)) {
+            for (Path entry : stream) {
+                entries.add(entry.getFileName().toString());
+            }
+        } catch (NoSuchFileException e) {
+            // Shard removed meanwhile
+        }
+    }
+    
+    private void findShardDirs() throws IOException {
+        try (DirectoryStream<Path> years = Files.newDirectoryStream(entriesDir, "[0-9][0-9][0-9][0-9]")) {
+            for (Path year : years) {
+                if (!Files.isDirectory(year)) {
+                    continue;
+                }
+                shardDirs.add(year);
+                try (DirectoryStream<Path> months = Files.newDirectoryStream(year, "[0-9][0-9]")) {
+                    for (Path month : months) {
+                        if (Files.isDirectory(month)) {
+                            shardDirs.add(month);
+                        }
+                    }
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // Entries directory not created yet
+        }
+    }
+    
+    private boolean isMonthDir(Path dir) {
+        return dir.getNameCount() == entriesDir.getNameCount() + 2;
+    }
+    
+    private void markDirty(String filename) {
+        synchronized (dirty) {
+            dirty.add(filename);
+        }
+    }
+    
+    @Override
+    public void close() {
+    }
+}
\ No newline at end of file
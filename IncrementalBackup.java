@@ -0,0 +1,240 @@
+package com.diary;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Backups that only store entries that changed since the previous backup.
+ *
+ * Every archive carries a MANIFEST describing the complete diary at backup
+ * time: for each entry its SHA-256, size, store version (file mtime or
+ * record position), size in the store and the archive that holds its
+ * content, plus a tombstone for each entry deleted since the previous
+ * backup. Any backup can therefore be restored on its own, pulling
+ * unchanged entries from the earlier archives in its chain.
+ *
+ * An entry whose version and stored size both match the previous manifest
+ * is taken as unchanged without reading it; anything else is read and
+ * compared by hash.
+ */
+class IncrementalBackup {
+    static final String PREFIX = "diary_incr_";
+    private static final String MANIFEST = "MANIFEST";
+    private static final String HEADER = "# diary incremental backup v2";
+    // Manifests without the stored size, whose entries are all read once more
+    private static final String HEADER_V1 = "# diary incremental backup v1";
+    private static final long UNKNOWN_SIZE = -1;
+    
+    private static final class Record {
+        final String hash;
+        final long size;
+        final long version;
+        final long storedSize;
+        final String archive;
+        
+        Record(String hash, long size, long version, long storedSize, String archive) {
+            this.hash = hash;
+            this.size = size;
+            this.version = version;
+            this.storedSize = storedSize;
+            this.archive = archive;
+        }
+    }
+    
+    private final EntryStore store;
+    private final Path backupDir;
+    
+    IncrementalBackup(EntryStore store, Path backupDir) {
+        this.store = store;
+        this.backupDir = backupDir;
+    }
+    
+    /** Writes a backup of the given entries and returns how many had to be stored. */
+    int create(Path backupPath, List<String> entries, Path configPath) throws IOException {
+        String archive = backupPath.getFileName().toString();
+        Map<String, Record> previous = latestManifest();
+        Map<String, Record> current = new TreeMap<>();
+        int stored = 0;
+        
+        Path temp = backupPath.resolveSibling(archive + ".tmp");
+        try (ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            for (String entry : entries) {
+                long version;
+                long storedSize;
+                try {
+                    version = store.version(entry);
+                    storedSize = store.size(entry);
+                } catch (FileNotFoundException e) {
+                    continue; // Deleted since the snapshot was taken
+                }
+                Record known = previous.get(entry);
+                if (known != null && known.version == version && known.storedSize == storedSize) {
+                    current.put(entry, known);
+                    continue;
+                }
+                byte[] content = store.read(entry);
+                String hash = sha256(content);
+                if (known != null && known.hash.equals(hash)) {
+                    current.put(entry, new Record(hash, content.length, version, storedSize, known.archive));
+                    continue;
+                }
+                zos.putNextEntry(new ZipEntry(entry));
+                zos.write(content);
+                zos.closeEntry();
+                current.put(entry, new Record(hash, content.length, version, storedSize, archive));
+                stored++;
+            }
+            
+            if (Files.exists(configPath)) {
+                zos.putNextEntry(new ZipEntry(configPath.getFileName().toString()));
+                Files.copy(configPath, zos);
+                zos.closeEntry();
+            }
+            
+            zos.putNextEntry(new ZipEntry(MANIFEST));
+            Writer writer = new OutputStreamWriter(zos, StandardCharsets.UTF_8);
+            writer.write(HEADER + "\n");
+            for (Map.Entry<String, Record> entry : current.entrySet()) {
+                Record record = entry.getValue();
+                writer.write("E\t" + entry.getKey() + "\t" + record.hash + "\t" + record.size + "\t"
+                    + record.version + "\t" + record.storedSize + "\t" + record.archive + "\n");
+            }
+            for (String deleted : previous.keySet()) {
+                if (!current.containsKey(deleted)) {
+                    writer.write("D\t" + deleted + "\n");
+                }
+            }
+            writer.flush();
+            zos.closeEntry();
+        }
+        Files.move(temp, backupPath, StandardCopyOption.ATOMIC_MOVE);
+        return stored;
+    }
+    
+    /**
+     * Restores the diary as it was when the given backup was taken into
+     * {@code targetDir}. Plain full backups are simply extracted.
+     */
+    static int restore(Path backupDir, String backupName, Path targetDir) throws IOException {
+        Path backupPath = backupDir.resolve(backupName);
+        if (!Files.exists(backupPath)) {
+            throw new FileNotFoundException("Backup not found: " + backupName);
+        }
+        Files.createDirectories(targetDir);
+        int restored = 0;
+        
+        if (!backupName.startsWith(PREFIX)) {
+            try (ZipFile zip = new ZipFile(backupPath.toFile())) {
+                for (ZipEntry entry : Collections.list(zip.entries())) {
+                    if (entry.getName().startsWith("diary_") && entry.getName().endsWith(".txt")) {
+                        try (InputStream in = zip.getInputStream(entry)) {
+                            Files.copy(in, restorePath(targetDir, entry.getName()), StandardCopyOption.REPLACE_EXISTING);
+                        }
+                        restored++;
+                    }
+                }
+            }
+            return restored;
+        }
+        
+        // Group entries by the archive holding them so each archive is opened once
+        Map<String, List<String>> byArchive = new TreeMap<>();
+        readManifest(backupPath).forEach((entry, record) ->
+            byArchive.computeIfAbsent(record.archive, a -> new ArrayList<>()).add(entry));
+        for (Map.Entry<String, List<String>> group : byArchive.entrySet()) {
+            Path archivePath = backupDir.resolve(group.getKey());
+            if (!Files.exists(archivePath)) {
+                throw new FileNotFoundException("Backup chain is missing " + group.getKey());
+            }
+            try (ZipFile zip = new ZipFile(archivePath.toFile())) {
+                for (String entry : group.getValue()) {
+                    ZipEntry zipEntry = zip.getEntry(entry);
+                    if (zipEntry == null) {
+                        throw new IOException(group.getKey() + " does not contain " + entry);
+                    }
+                    try (InputStream in = zip.getInputStream(zipEntry)) {
+                        Files.copy(in, restorePath(targetDir, entry), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    restored++;
+                }
+            }
+        }
+        return restored;
+    }
+    
+    /**
+     * Where a restored entry goes. Names come from the archive, so one that
+     * would land anywhere but directly in {@code targetDir}, such as
+     * {@code diary_/../../x.txt}, is refused rather than written.
+     */
+    static Path restorePath(Path targetDir, String name) throws IOException {
+        Path dir = targetDir.toAbsolutePath().normalize();
+        Path path = dir.resolve(name).normalize();
+        if (!dir.equals(path.getParent())) {
+            throw new IOException("Backup entry " + name + " points outside the restore directory");
+        }
+        return path;
+    }
+    
+    private Map<String, Record> latestManifest() throws IOException {
+        String latest = null;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(backupDir, PREFIX + "*.zip")) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                if (latest == null || DiaryFileHandler.BACKUP_ORDER.compare(name, latest) > 0) {
+                    latest = name;
+                }
+            }
+        }
+        if (latest == null) {
+            return new HashMap<>();
+        }
+        try {
+            return readManifest(backupDir.resolve(latest));
+        } catch (IOException e) {
+            System.err.println("Warning: Could not read manifest of " + latest + ", taking a full backup: " + e.getMessage());
+            return new HashMap<>();
+        }
+    }
+    
+    private static Map<String, Record> readManifest(Path backupPath) throws IOException {
+        Map<String, Record> records = new HashMap<>();
+        try (ZipFile zip = new ZipFile(backupPath.toFile())) {
+            ZipEntry manifest = zip.getEntry(MANIFEST);
+            if (manifest == null) {
+                throw new IOException("No manifest in " + backupPath.getFileName());
+            }
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(zip.getInputStream(manifest), StandardCharsets.UTF_8))) {
+                String line = reader.readLine();
+                boolean withStoredSize = HEADER.equals(line);
+                if (!withStoredSize && !HEADER_V1.equals(line)) {
+                    throw new IOException("Unsupported manifest in " + backupPath.getFileName());
+                }
+                int fields = withStoredSize ? 7 : 6;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split("\t");
+                    if (parts[0].equals("E") && parts.length == fields) {
+                        long storedSize = withStoredSize ? Long.parseLong(parts[5]) : UNKNOWN_SIZE;
+                        records.put(parts[1], new Record(parts[2], Long.parseLong(parts[3]),
+                            Long.parseLong(parts[4]), storedSize, parts[fields - 1]));
+                    }
+                }
+            }
+        }
+        return records;
+    }
+    
+    private static String sha256(byte[] content) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
\ No newline at end of file
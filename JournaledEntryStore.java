@@ -0,0 +1,385 @@
+package com.diary;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Write-ahead journal in front of another entry store.
+ *
+ * Every change is appended to {@code diary.journal} and made durable before
+ * it reaches the underlying store. Writers that commit at the same time
+ * share a single fsync (group commit); in interval mode writers do not wait
+ * at all and the journal is forced in the background instead. Once the
+ * journal grows large the underlying store is synced and the journal is
+ * truncated. On startup any records left by a crash are replayed.
+ *
+ * Record layout: type (1 byte), name (modified UTF-8), previous name for
+ * replaces (modified UTF-8, empty otherwise), content length (4), content,
+ * CRC32 of everything before it (4).
+ */
+class JournaledEntryStore implements EntryStore {
+    static final String JOURNAL_FILE = "diary.journal";
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final byte REPLACE = 3;
+    private static final long CHECKPOINT_BYTES = 4 * 1024 * 1024;
+    
+    private final EntryStore store;
+    private final FileChannel journal;
+    private final boolean syncOnCommit;
+    private final ScheduledExecutorService flusher;
+    // Writers hold the read lock from append to apply, checkpoints take the write lock
+    private final ReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+    private final Object applyLock = new Object();
+    // Newest journal sequence per entry that has not reached the store yet
+    private final Map<String, Long> unapplied = new HashMap<>();
+    private final Set<String> recovered = new HashSet<>();
+    private long sequence;
+    private long appended;
+    private long synced;
+    private boolean syncing;
+    private long commits;
+    private long syncs;
+    
+    /**
+     * @param intervalMillis 0 to make every commit wait for its fsync,
+     *                       otherwise how often the journal is forced in the background
+     */
+    JournaledEntryStore(EntryStore store, Path entriesDir, long intervalMillis) throws IOException {
+        this.store = store;
+        Path journalPath = entriesDir.resolve(JOURNAL_FILE);
+        recover(journalPath);
+        this.journal = FileChannel.open(journalPath,
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.syncOnCommit = intervalMillis <= 0;
+        if (syncOnCommit) {
+            this.flusher = null;
+        } else {
+            this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "diary-journal-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(this::flush, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /** Entries that were changed by replaying the journal when the store was opened. */
+    Set<String> getRecovered() {
+        return Collections.unmodifiableSet(recovered);
+    }
+    
+    @Override
+    public void write(String filename, byte[] content) throws IOException {
+        commit(Collections.singletonMap(filename, content), PUT, null);
+    }
+    
+    /** Journals all entries with a single fsync before writing them to the store. */
+    @Override
+    public void writeAll(Map<String, byte[]> entries) throws IOException {
+        commit(entries, PUT, null);
+    }
+    
+    @Override
+    public void replace(String oldFilename, String newFilename, byte[] content) throws IOException {
+        if (oldFilename.equals(newFilename)) {
+            write(newFilename, content);
+        } else {
+            commit(Collections.singletonMap(newFilename, content), REPLACE, oldFilename);
+        }
+    }
+    
+    @Override
+    public boolean delete(String filename) throws IOException {
+        return commit(Collections.singletonMap(filename, new byte[0]), DELETE, null);
+    }
+    
+    @Override
+    public byte[] read(String filename) throws IOException {
+        return store.read(filename);
+    }
+    
+    @Override
+    public ByteBuffer map(String filename) throws IOException {
+        return store.map(filename);
+    }
+    
+    @Override
+    public long version(String filename) throws IOException {
+        return store.version(filename);
+    }
+    
+    @Override
+    public long size(String filename) throws IOException {
+        return store.size(filename);
+    }
+    
+    @Override
+    public List<String> list() throws IOException {
+        return store.list();
+    }
+    
+    @Override
+    public long count() throws IOException {
+        return store.count();
+    }
+    
+    @Override
+    public void sync() throws IOException {
+        checkpointLock.readLock().lock();
+        try {
+            flush(appendedSoFar());
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+    }
+    
+    /** Checkpoints the journal so the next start does not have to replay it. */
+    @Override
+    public void close() throws IOException {
+        if (flusher != null) {
+            flusher.shutdownNow();
+        }
+        try {
+            checkpoint();
+        } finally {
+            journal.close();
+            store.close();
+        }
+    }
+    
+    synchronized String getStatistics() {
+        String mode = syncOnCommit ? "group commit" : "interval sync";
+        return String.format("%s, %d commits, %d fsyncs, %d KB pending checkpoint",
+            mode, commits, syncs, appended / 1024);
+    }
+    
+    // Returns whether the last change reached the store, which only matters for deletes
+    private boolean commit(Map<String, byte[]> entries, byte type, String previousName) throws IOException {
+        long end;
+        long committed;
+        boolean changed = false;
+        checkpointLock.readLock().lock();
+        try {
+            synchronized (this) {
+                ByteArrayOutputStream records = new ByteArrayOutputStream();
+                for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                    records.write(record(type, entry.getKey(), previousName, entry.getValue()));
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(records.toByteArray());
+                while (buffer.hasRemaining()) {
+                    appended += journal.write(buffer, appended);
+                }
+                end = appended;
+                committed = ++sequence;
+                for (String filename : entries.keySet()) {
+                    unapplied.put(filename, committed);
+                }
+                if (previousName != null) {
+                    unapplied.put(previousName, committed);
+                }
+                commits++;
+            }
+            if (syncOnCommit) {
+                flush(end);
+            }
+            // A newer commit for the same entry may have been applied first; it wins
+            synchronized (applyLock) {
+                for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                    if (takeIfNewest(entry.getKey(), committed)) {
+                        changed = apply(type, entry.getKey(), entry.getValue());
+                    }
+                }
+                if (previousName != null && takeIfNewest(previousName, committed)) {
+                    store.delete(previousName);
+                }
+            }
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+        if (end > CHECKPOINT_BYTES) {
+            checkpoint();
+        }
+        return changed;
+    }
+    
+    private synchronized boolean takeIfNewest(String filename, long committed) {
+        return unapplied.remove(filename, committed);
+    }
+    
+    private boolean apply(byte type, String filename, byte[] content) throws IOException {
+        if (type == DELETE) {
+            return store.delete(filename);
+        }
+        store.write(filename, content);
+        return true;
+    }
+    
+    private synchronized long appendedSoFar() {
+        return appended;
+    }
+    
+    private void flush() {
+        try {
+            sync();
+        } catch (IOException e) {
+            System.err.println("Warning: Could not sync journal: " + e.getMessage());
+        }
+    }
+    
+    // Whoever finds no fsync in progress forces everything appended so far,
+    // the others wait for it and return if it covered their records
+    private void flush(long end) throws IOException {
+        while (true) {
+            long target;
+            synchronized (this) {
+                while (syncing && synced < end) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for the journal");
+                    }
+                }
+                if (synced >= end) {
+                    return;
+                }
+                syncing = true;
+                target = appended;
+            }
+            boolean forced = false;
+            try {
+                journal.force(false);
+                forced = true;
+            } finally {
+                synchronized (this) {
+                    syncing = false;
+                    if (forced) {
+                        synced = Math.max(synced, target);
+                        syncs++;
+                    }
+                    notifyAll();
+                }
+            }
+        }
+    }
+    
+    private void checkpoint() throws IOException {
+        checkpointLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                if (appended == 0) {
+                    return;
+                }
+                store.sync();
+                journal.truncate(0);
+                journal.force(false);
+                appended = 0;
+                synced = 0;
+            }
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+    
+    // Replays intact records in order; a torn record ends the journal
+    private void recover(Path journalPath) throws IOException {
+        if (!Files.exists(journalPath) || Files.size(journalPath) == 0) {
+            return;
+        }
+        long journalSize = Files.size(journalPath);
+        CRC32 crc = new CRC32();
+        int replayed = 0;
+        CountingInputStream counted = new CountingInputStream(new BufferedInputStream(Files.newInputStream(journalPath)));
+        try (DataInputStream in = new DataInputStream(new CheckedInputStream(counted, crc))) {
+            while (true) {
+                crc.reset();
+                int type = in.read();
+                if (type == -1) {
+                    break;
+                }
+                String name = in.readUTF();
+                String previousName = in.readUTF();
+                int length = in.readInt();
+                // A corrupt length must not be allocated before the CRC can reject it
+                if ((type != PUT && type != DELETE && type != REPLACE) || length < 0
+                        || length > journalSize - counted.count) {
+                    break;
+                }
+                byte[] content = new byte[length];
+                in.readFully(content);
+                long expected = crc.getValue();
+                if (in.readInt() != (int) expected) {
+                    break;
+                }
+                apply((byte) type, name, content);
+                recovered.add(name);
+                if (type == REPLACE) {
+                    store.delete(previousName);
+                    recovered.add(previousName);
+                }
+                replayed++;
+            }
+        } catch (EOFException e) {
+            // Torn write at the end of the journal; the writer never saw it commit
+        }
+        store.sync();
+        if (replayed > 0) {
+            System.out.println("Recovered " + replayed + " journaled changes.");
+        }
+    }
+    
+    private static final class CountingInputStream extends FilterInputStream {
+        long count;
+        
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+        
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+        
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+        
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+    
+    private static byte[] record(byte type, String name, String previousName, byte[] content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length + 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(type);
+        out.writeUTF(name);
+        out.writeUTF(previousName == null ? "" : previousName);
+        out.writeInt(content.length);
+        out.write(content);
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+        return bytes.toByteArray();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,193 @@
+package com.diary;
+
+import java.util.*;
+
+/**
+ * Just enough JSON for flat objects of strings and numbers, as used by the
+ * JSON Lines import/export. Nested values are rejected.
+ */
+final class Json {
+    private Json() {
+    }
+    
+    static String quote(String value) {
+        StringBuilder out = new StringBuilder(value.length() + 16);
+        appendQuoted(out, value);
+        return out.toString();
+    }
+    
+    static void appendQuoted(StringBuilder out, String value) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> out.append("\\\"");
+                case '\\' -> out.append("\\\\");
+                case '\n' -> out.append("\\n");
+                case '\r' -> out.append("\\r");
+                case '\t' -> out.append("\\t");
+                case '\b' -> out.append("\\b");
+                case '\f' -> out.append("\\f");
+                default -> {
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+                }
+            }
+        }
+        out.append('"');
+    }
+    
+    /** Writes the pairs as one object, in the given order. */
+    static String object(Map<String, ?> fields) {
+        StringBuilder out = new StringBuilder();
+        out.append('{');
+        for (Map.Entry<String, ?> field : fields.entrySet()) {
+            if (out.length() > 1) {
+                out.append(',');
+            }
+            appendQuoted(out, field.getKey());
+            out.append(':');
+            Object value = field.getValue();
+            if (value == null || value instanceof Number || value instanceof Boolean) {
+                out.append(value);
+            } else {
+                appendQuoted(out, value.toString());
+            }
+        }
+        return out.append('}').toString();
+    }
+    
+    /**
+     * Parses a flat object. String values are unescaped, numbers and
+     * literals are returned as written, {@code null} maps to null.
+     */
+    static Map<String, String> parseObject(String text) {
+        Parser parser = new Parser(text);
+        Map<String, String> fields = new LinkedHashMap<>();
+        parser.skipWhitespace();
+        parser.expect('{');
+        parser.skipWhitespace();
+        if (parser.peek() == '}') {
+            parser.next();
+        } else {
+            while (true) {
+                parser.skipWhitespace();
+                String key = parser.string();
+                parser.skipWhitespace();
+                parser.expect(':');
+                parser.skipWhitespace();
+                fields.put(key, parser.value());
+                parser.skipWhitespace();
+                char c = parser.next();
+                if (c == '}') {
+                    break;
+                }
+                if (c != ',') {
+                    throw parser.error("Expected ',' or '}'");
+                }
+            }
+        }
+        parser.skipWhitespace();
+        if (parser.position < text.length()) {
+            throw parser.error("Unexpected trailing content");
+        }
+        return fields;
+    }
+    
+    private static final class Parser {
+        private final String text;
+        private int position;
+        
+        Parser(String text) {
+            this.text = text;
+        }
+        
+        char peek() {
+            if (position >= text.length()) {
+                throw error("Unexpected end of input");
+            }
+            return text.charAt(position);
+        }
+        
+        char next() {
+            char c = peek();
+            position++;
+            return c;
+        }
+        
+        void expect(char expected) {
+            if (next() != expected) {
+                throw error("Expected '" + expected + "'");
+            }
+        }
+        
+        void skipWhitespace() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+        }
+        
+        String value() {
+            char c = peek();
+            if (c == '"') {
+                return string();
+            }
+            if (c == '{' || c == '[') {
+                throw error("Nested values are not supported");
+            }
+            int start = position;
+            while (position < text.length() && ",}".indexOf(text.charAt(position)) < 0
+                    && !Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+            String literal = text.substring(start, position);
+            if (literal.isEmpty()) {
+                throw error("Expected a value");
+            }
+            return literal.equals("null") ? null : literal;
+        }
+        
+        String string() {
+            expect('"');
+            StringBuilder out = new StringBuilder();
+            while (true) {
+                char c = next();
+                if (c == '"') {
+                    return out.toString();
+                }
+                if (c != '\\') {
+                    out.append(c);
+                    continue;
+                }
+                char escaped = next();
+                switch (escaped) {
+                    case '"', '\\', '/' -> out.append(escaped);
+                    case 'n' -> out.append('\n');
+                    case 'r' -> out.append('\r');
+                    case 't' -> out.append('\t');
+                    case 'b' -> out.append('\b');
+                    case 'f' -> out.append('\f');
+                    case 'u' -> {
+                        if (position + 4 > text.length()) {
+                            throw error("Truncated unicode escape");
+                        }
+                        try {
+                            out.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw error("Invalid unicode escape");
+                        }
+                        position += 4;
+                    }
+                    default -> throw error("Invalid escape '\\" + escaped + "'");
+                }
+            }
+        }
+        
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at column " + (position + 1));
+        }
+    }
+}
\ No newline at end of file
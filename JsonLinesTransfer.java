@@ -0,0 +1,110 @@
+package com.diary;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+
+/**
+ * Streams entries to and from JSON Lines files, one
+ * {@code {"timestamp": "2024-01-31T20:15:00", "content": "..."}} object per
+ * line. Only one batch of entries is held in memory at a time.
+ */
+class JsonLinesTransfer {
+    private static final int MAX_REPORTED_ERRORS = 10;
+    static final DateTimeFormatter TIMESTAMP_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss");
+    
+    private final DiaryFileHandler handler;
+    private final int batchSize;
+    
+    JsonLinesTransfer(DiaryFileHandler handler, int batchSize) {
+        this.handler = handler;
+        this.batchSize = batchSize;
+    }
+    
+    /** Imports every well-formed line and returns the number of entries saved. */
+    long importFrom(Path source) throws IOException {
+        long start = System.nanoTime();
+        long imported = 0;
+        long skipped = 0;
+        long lineNumber = 0;
+        List<DiaryEntry> batch = new ArrayList<>(batchSize);
+        try (BufferedReader reader = Files.newBufferedReader(source, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank()) {
+                    continue;
+                }
+                try {
+                    batch.add(parse(line));
+                } catch (IllegalArgumentException | DateTimeParseException e) {
+                    if (++skipped <= MAX_REPORTED_ERRORS) {
+                        System.err.println("Warning: Skipping line " + lineNumber + ": " + e.getMessage());
+                    }
+                    continue;
+                }
+                if (batch.size() == batchSize) {
+                    imported += handler.saveEntries(batch);
+                    batch.clear();
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            imported += handler.saveEntries(batch);
+        }
+        
+        double seconds = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+        System.out.printf("Imported %d entries in %.2f s (%.0f records/s)%s%n", imported, seconds,
+            imported / seconds, skipped > 0 ? ", skipped " + skipped + " malformed lines" : "");
+        return imported;
+    }
+    
+    /** Writes every entry oldest first and returns the number written. */
+    long exportTo(Path target) throws IOException {
+        long start = System.nanoTime();
+        long exported = 0;
+        long total = handler.getTotalEntries();
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            // Pages come newest first, so walk them from the oldest end
+            for (long end = total; end > 0; end -= batchSize) {
+                int offset = (int) Math.max(0, end - batchSize);
+                List<String> page = handler.listEntries(offset, (int) (end - offset));
+                for (int i = page.size() - 1; i >= 0; i--) {
+                    String filename = page.get(i);
+                    String content;
+                    try {
+                        content = handler.readEntry(filename);
+                    } catch (FileNotFoundException e) {
+                        continue; // Deleted while exporting
+                    }
+                    Map<String, Object> fields = new LinkedHashMap<>();
+                    fields.put("timestamp", handler.extractTimestampFromFilename(filename).format(TIMESTAMP_FORMATTER));
+                    fields.put("content", content);
+                    writer.write(Json.object(fields));
+                    writer.newLine();
+                    exported++;
+                }
+            }
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        
+        double seconds = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+        System.out.printf("Exported %d entries in %.2f s (%.0f records/s)%n", exported, seconds, exported / seconds);
+        return exported;
+    }
+    
+    private static DiaryEntry parse(String line) {
+        Map<String, String> fields = Json.parseObject(line);
+        String timestamp = fields.get("timestamp");
+        String content = fields.get("content");
+        if (timestamp == null || content == null) {
+            throw new IllegalArgumentException("Expected \"timestamp\" and \"content\"");
+        }
+        return new DiaryEntry(LocalDateTime.parse(timestamp).withNano(0), content);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,81 @@
+package com.diary;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Case-insensitive substring match of a search keyword against entry text,
+ * either as a String or directly over the UTF-8 bytes of an entry.
+ */
+class KeywordMatcher {
+    private final String keyword;
+    private final byte[] asciiKeyword;
+    
+    KeywordMatcher(String keyword) {
+        this.keyword = keyword.toLowerCase(Locale.ROOT);
+        this.asciiKeyword = isAscii(this.keyword) ? this.keyword.getBytes(StandardCharsets.US_ASCII) : null;
+    }
+    
+    boolean matches(String content) {
+        return content.toLowerCase(Locale.ROOT).contains(keyword);
+    }
+    
+    /**
+     * Matches without decoding when the keyword is plain ASCII. UTF-8 never
+     * uses ASCII byte values inside multi-byte sequences, so a byte-wise
+     * ASCII case fold only finds real occurrences. It can miss some, though:
+     * lower-casing folds a few other characters into ASCII, such as the
+     * Kelvin sign into 'k', so entries with any non-ASCII byte that the
+     * scan did not match are decoded and matched as a String.
+     */
+    boolean matches(ByteBuffer content) {
+        if (asciiKeyword == null) {
+            return matches(decode(content));
+        }
+        int length = asciiKeyword.length;
+        int base = content.position();
+        int limit = content.limit();
+        int last = limit - length;
+        byte first = asciiKeyword[0];
+        boolean ascii = true;
+        for (int i = base; i < limit; i++) {
+            byte b = content.get(i);
+            if (b < 0) {
+                ascii = false;
+                continue;
+            }
+            if (i > last || toLower(b) != first) {
+                continue;
+            }
+            int j = 1;
+            while (j < length && toLower(content.get(i + j)) == asciiKeyword[j]) {
+                j++;
+            }
+            if (j == length) {
+                return true;
+            }
+        }
+        return !ascii && matches(decode(content));
+    }
+    
+    static String decode(ByteBuffer content) {
+        return StandardCharsets.UTF_8.decode(content.duplicate()).toString();
+    }
+    
+    private static byte toLower(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+    
+    private static boolean isAscii(String text) {
+        if (text.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) > 0x7F) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,113 @@
+package com.diary;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.concurrent.*;
+import javax.management.*;
+
+/**
+ * Publishes {@link DiaryMetrics} as the settings ask: rewrites a metrics
+ * file of {@code name=value} lines every interval, and/or registers the
+ * metrics as an MBean for JMX monitoring tools.
+ */
+class MetricsExporter {
+    static final String OBJECT_NAME = "com.diary:type=DiaryMetrics";
+    
+    private final DiaryMetrics metrics;
+    private ScheduledExecutorService scheduler;
+    private Path metricsFile;
+    private ObjectName registered;
+    
+    MetricsExporter(DiaryMetrics metrics) {
+        this.metrics = metrics;
+    }
+    
+    /** Starts, stops or moves the exports to match the settings. */
+    synchronized void configure(DiarySettings settings) {
+        stopFile();
+        if (settings.isMetricsToFile()) {
+            metricsFile = Paths.get(settings.getMetricsFile());
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "diary-metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long interval = settings.getMetricsIntervalSeconds();
+            scheduler.scheduleAtFixedRate(this::writeFile, interval, interval, TimeUnit.SECONDS);
+        }
+        if (settings.isMetricsToJmx()) {
+            register();
+        } else {
+            unregister();
+        }
+    }
+    
+    /** Stops exporting, writing the metrics file one last time. */
+    synchronized void close() {
+        if (scheduler != null) {
+            writeFile();
+        }
+        stopFile();
+        unregister();
+    }
+    
+    private void stopFile() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+    
+    // Written in one go and renamed, so readers never see half a file
+    private void writeFile() {
+        Path target;
+        synchronized (this) {
+            target = metricsFile;
+        }
+        StringBuilder out = new StringBuilder();
+        out.append("# diary metrics at ").append(LocalDateTime.now().withNano(0)).append('\n');
+        for (Map.Entry<String, Object> value : metrics.snapshot().entrySet()) {
+            out.append(value.getKey()).append('=').append(value.getValue()).append('\n');
+        }
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try {
+            Files.writeString(temp, out, StandardCharsets.UTF_8);
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Warning: Could not write metrics file: " + e.getMessage());
+        }
+    }
+    
+    private void register() {
+        if (registered != null) {
+            return;
+        }
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new StandardMBean(metrics, DiaryMetricsMBean.class), name);
+            registered = name;
+        } catch (JMException e) {
+            System.err.println("Warning: Could not register metrics MBean: " + e.getMessage());
+        }
+    }
+    
+    private void unregister() {
+        if (registered == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registered);
+        } catch (JMException e) {
+            System.err.println("Warning: Could not unregister metrics MBean: " + e.getMessage());
+        }
+        registered = null;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,277 @@
+package com.diary;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a ZIP archive whose entries are read and compressed on a pool of
+ * worker threads. ZipOutputStream can only compress on the writing thread,
+ * so the archive structure is written here directly: compressed entries are
+ * appended in order as they complete, and the central directory is spooled
+ * to a temporary file and appended at the end (with ZIP64 records when the
+ * archive outgrows the classic format). The archive itself is written next
+ * to the target and renamed into place once complete, so a failed backup
+ * never leaves a truncated archive behind.
+ */
+class ParallelZipWriter {
+    static final int STORE = -1;
+    
+    interface ContentSource {
+        /** Returns null when the entry no longer exists and should be skipped. */
+        byte[] read(String name) throws IOException;
+    }
+    
+    private static final class Compressed {
+        final String name;
+        final byte[] data;
+        final int length;
+        final long crc;
+        final long size;
+        final int method;
+        
+        Compressed(String name, byte[] data, int length, long crc, long size, int method) {
+            this.name = name;
+            this.data = data;
+            this.length = length;
+            this.crc = crc;
+            this.size = size;
+            this.method = method;
+        }
+    }
+    
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+    private static final int FLAG_UTF8 = 0x0800;
+    private static final int VERSION = 45;
+    private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+    
+    private final int level;
+    private final int threads;
+    private long fileCount;
+    private long rawBytes;
+    private long compressedBytes;
+    
+    /**
+     * @param level   Deflater level 0-9, or {@link #STORE} to store without compressing
+     * @param threads worker threads, 0 for every available core
+     */
+    ParallelZipWriter(int level, int threads) {
+        this.level = level;
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+    
+    long getFileCount() { return fileCount; }
+    long getRawBytes() { return rawBytes; }
+    long getCompressedBytes() { return compressedBytes; }
+    
+    void write(Path target, List<String> names, ContentSource source) throws IOException {
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        Path centralDirectory = Files.createTempFile(target.getParent(), "central", ".tmp");
+        int[] dosTime = dosTime(LocalDateTime.now());
+        try {
+            try (CountingOutputStream out = new CountingOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16));
+                 OutputStream directory = new BufferedOutputStream(Files.newOutputStream(centralDirectory), 1 << 16)) {
+                
+                // Keep a bounded window of entries in flight so memory stays flat
+                Deque<Future<Compressed>> window = new ArrayDeque<>();
+                int windowSize = threads * 4;
+                Iterator<String> pending = names.iterator();
+                while (pending.hasNext() || !window.isEmpty()) {
+                    while (pending.hasNext() && window.size() < windowSize) {
+                        String name = pending.next();
+                        window.add(workers.submit(() -> {
+                            byte[] content = source.read(name);
+                            return content == null ? null : compress(name, content);
+                        }));
+                    }
+                    Compressed entry = await(window.poll());
+                    if (entry == null) {
+                        continue;
+                    }
+                    long offset = out.count;
+                    writeLocalHeader(out, entry, dosTime);
+                    out.write(entry.data, 0, entry.length);
+                    writeCentralHeader(directory, entry, dosTime, offset);
+                    fileCount++;
+                    rawBytes += entry.size;
+                    compressedBytes += entry.length;
+                }
+                directory.flush();
+                
+                long directoryOffset = out.count;
+                Files.copy(centralDirectory, out);
+                writeEnd(out, fileCount, directoryOffset, out.count - directoryOffset);
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            workers.shutdownNow();
+            Files.deleteIfExists(centralDirectory);
+            Files.deleteIfExists(temp);
+        }
+    }
+    
+    private Compressed compress(String name, byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        if (level != STORE) {
+            Deflater deflater = new Deflater(level, true);
+            try {
+                deflater.setInput(content);
+                deflater.finish();
+                byte[] buffer = new byte[Math.max(64, content.length + content.length / 100 + 64)];
+                int length = 0;
+                while (!deflater.finished()) {
+                    if (length == buffer.length) {
+                        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    }
+                    length += deflater.deflate(buffer, length, buffer.length - length);
+                }
+                // Incompressible content is cheaper to store as is
+                if (length < content.length) {
+                    return new Compressed(name, buffer, length, crc.getValue(), content.length, METHOD_DEFLATED);
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+        return new Compressed(name, content, content.length, crc.getValue(), content.length, METHOD_STORED);
+    }
+    
+    private static Compressed await(Future<Compressed> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Backup interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Could not compress entry: " + e.getCause(), e.getCause());
+        }
+    }
+    
+    private static void writeLocalHeader(OutputStream out, Compressed entry, int[] dosTime) throws IOException {
+        byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+        writeInt(out, 0x04034b50);
+        writeShort(out, VERSION);
+        writeShort(out, FLAG_UTF8);
+        writeShort(out, entry.method);
+        writeShort(out, dosTime[0]);
+        writeShort(out, dosTime[1]);
+        writeInt(out, entry.crc);
+        writeInt(out, entry.length);
+        writeInt(out, entry.size);
+        writeShort(out, name.length);
+        writeShort(out, 0);
+        out.write(name);
+    }
+    
+    private static void writeCentralHeader(OutputStream out, Compressed entry, int[] dosTime, long offset) throws IOException {
+        byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+        boolean zip64 = offset >= ZIP64_LIMIT;
+        writeInt(out, 0x02014b50);
+        writeShort(out, VERSION);
+        writeShort(out, VERSION);
+        writeShort(out, FLAG_UTF8);
+        writeShort(out, entry.method);
+        writeShort(out, dosTime[0]);
+        writeShort(out, dosTime[1]);
+        writeInt(out, entry.crc);
+        writeInt(out, entry.length);
+        writeInt(out, entry.size);
+        writeShort(out, name.length);
+        writeShort(out, zip64 ? 12 : 0);
+        writeShort(out, 0);
+        writeShort(out, 0);
+        writeShort(out, 0);
+        writeInt(out, 0);
+        writeInt(out, zip64 ? ZIP64_LIMIT : offset);
+        out.write(name);
+        if (zip64) {
+            writeShort(out, 0x0001);
+            writeShort(out, 8);
+            writeLong(out, offset);
+        }
+    }
+    
+    private static void writeEnd(CountingOutputStream out, long entries, long offset, long size) throws IOException {
+        boolean zip64 = entries >= 0xFFFF || offset >= ZIP64_LIMIT || size >= ZIP64_LIMIT;
+        if (zip64) {
+            long zip64End = out.count;
+            writeInt(out, 0x06064b50);
+            writeLong(out, 44);
+            writeShort(out, VERSION);
+            writeShort(out, VERSION);
+            writeInt(out, 0);
+            writeInt(out, 0);
+            writeLong(out, entries);
+            writeLong(out, entries);
+            writeLong(out, size);
+            writeLong(out, offset);
+            
+            writeInt(out, 0x07064b50);
+            writeInt(out, 0);
+            writeLong(out, zip64End);
+            writeInt(out, 1);
+        }
+        writeInt(out, 0x06054b50);
+        writeShort(out, 0);
+        writeShort(out, 0);
+        writeShort(out, zip64 ? 0xFFFF : (int) entries);
+        writeShort(out, zip64 ? 0xFFFF : (int) entries);
+        writeInt(out, zip64 ? ZIP64_LIMIT : size);
+        writeInt(out, zip64 ? ZIP64_LIMIT : offset);
+        writeShort(out, 0);
+    }
+    
+    private static int[] dosTime(LocalDateTime time) {
+        return new int[] {
+            (time.getHour() << 11) | (time.getMinute() << 5) | (time.getSecond() / 2),
+            ((time.getYear() - 1980) << 9) | (time.getMonthValue() << 5) | time.getDayOfMonth()
+        };
+    }
+    
+    private static void writeShort(OutputStream out, int value) throws IOException {
+        out.write(value & 0xFF);
+        out.write((value >>> 8) & 0xFF);
+    }
+    
+    private static void writeInt(OutputStream out, long value) throws IOException {
+        writeShort(out, (int) (value & 0xFFFF));
+        writeShort(out, (int) ((value >>> 16) & 0xFFFF));
+    }
+    
+    private static void writeLong(OutputStream out, long value) throws IOException {
+        writeInt(out, value & 0xFFFFFFFFL);
+        writeInt(out, value >>> 32);
+    }
+    
+    private static final class CountingOutputStream extends FilterOutputStream {
+        long count;
+        
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,82 @@
+package com.diary;
+
+import java.util.*;
+
+/**
+ * A parsed ranked-search query. Words and "quoted phrases" must all appear
+ * in an entry; an upper-case {@code OR} between them starts an alternative,
+ * so {@code rain walk OR "sunny day"} matches entries with both rain and
+ * walk, or with the exact phrase sunny day. Words are split into terms the
+ * same way entries are, so a word like {@code e-mail} is a phrase of two.
+ */
+final class SearchQuery {
+    // Alternatives, each a list of clauses that must all match; a clause is a term sequence
+    private final List<List<List<String>>> groups;
+    private final Set<String> terms;
+    
+    private SearchQuery(List<List<List<String>>> groups, Set<String> terms) {
+        this.groups = groups;
+        this.terms = terms;
+    }
+    
+    static SearchQuery parse(String text) {
+        List<List<List<String>>> groups = new ArrayList<>();
+        Set<String> terms = new LinkedHashSet<>();
+        List<List<String>> group = new ArrayList<>();
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+                continue;
+            }
+            int end;
+            String clause;
+            if (c == '"') {
+                end = text.indexOf('"', i + 1);
+                if (end < 0) {
+                    end = text.length();
+                }
+                clause = text.substring(i + 1, end);
+                end++;
+            } else {
+                end = i;
+                while (end < text.length() && !Character.isWhitespace(text.charAt(end)) && text.charAt(end) != '"') {
+                    end++;
+                }
+                clause = text.substring(i, end);
+                if (clause.equals("OR")) {
+                    if (!group.isEmpty()) {
+                        groups.add(group);
+                        group = new ArrayList<>();
+                    }
+                    i = end;
+                    continue;
+                }
+            }
+            List<String> clauseTerms = DiaryIndex.terms(clause);
+            if (!clauseTerms.isEmpty()) {
+                group.add(clauseTerms);
+                terms.addAll(clauseTerms);
+            }
+            i = end;
+        }
+        if (!group.isEmpty()) {
+            groups.add(group);
+        }
+        return new SearchQuery(groups, terms);
+    }
+    
+    boolean isEmpty() {
+        return groups.isEmpty();
+    }
+    
+    List<List<List<String>>> getGroups() {
+        return groups;
+    }
+    
+    /** Every distinct term of the query, used for scoring. */
+    Set<String> getTerms() {
+        return terms;
+    }
+}
\ No newline at end of file
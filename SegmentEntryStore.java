@@ -0,0 +1,504 @@
+package com.diary;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+/**
+ * Appends entries to rolling segment files instead of one file per entry.
+ *
+ * Record layout: type (1 byte), name length (2), content length (4), name,
+ * content, CRC32 of everything before it (4). Deletes append a tombstone.
+ * When a segment is sealed a hint file with the offsets of its records is
+ * written next to it so startup does not have to rescan it. Once most of
+ * the sealed data is dead, a background task re-appends the live records
+ * and drops the sealed segments.
+ *
+ * An entry's version is where it was written. Compaction re-appends live
+ * records as moved records, which carry that original version (8 bytes
+ * between name and content), so moving an entry does not make it look
+ * changed. Stores holding moved records cannot be opened by versions of the
+ * app from before they existed.
+ *
+ * Reads take no lock: records never change once written, and a segment is
+ * only closed after compaction has pointed its live entries elsewhere, so a
+ * read that loses that race looks the entry up again.
+ */
+class SegmentEntryStore implements EntryStore {
+    static final String SEGMENT_GLOB = "segment_*.log";
+    private static final String HINT_SUFFIX = ".hint";
+    private static final byte PUT = 1;
+    private static final byte TOMBSTONE = 2;
+    private static final byte MOVED = 3;
+    private static final int HEADER_BYTES = 7;
+    private static final int VERSION_BYTES = 8;
+    private static final int TRAILER_BYTES = 4;
+    private static final double COMPACTION_THRESHOLD = 0.5;
+    private static final long COMPACTION_INTERVAL_SECONDS = 30;
+    
+    private static final class Location {
+        final int segment;
+        final long offset;
+        final int nameLength;
+        final int contentLength;
+        final long version;
+        final boolean moved;
+        
+        Location(int segment, long offset, int nameLength, int contentLength, long version, boolean moved) {
+            this.segment = segment;
+            this.offset = offset;
+            this.nameLength = nameLength;
+            this.contentLength = contentLength;
+            this.version = version;
+            this.moved = moved;
+        }
+        
+        long contentOffset() { return offset + HEADER_BYTES + nameLength + (moved ? VERSION_BYTES : 0); }
+        long recordSize() { return contentOffset() - offset + contentLength + TRAILER_BYTES; }
+    }
+    
+    private static final class Segment {
+        final int id;
+        final Path path;
+        final FileChannel channel;
+        long size;
+        long liveBytes;
+        private MappedByteBuffer mapped;
+        
+        Segment(int id, Path path, FileChannel channel) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+        }
+        
+        Path hintPath() { return path.resolveSibling(path.getFileName() + HINT_SUFFIX); }
+        
+        // The active segment keeps growing, so remap once a record lies past the old mapping
+        synchronized MappedByteBuffer map(long end) throws IOException {
+            if (mapped == null || mapped.capacity() < end) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.max(end, channel.size()));
+            }
+            return mapped;
+        }
+    }
+    
+    private interface RecordVisitor {
+        void visit(byte type, String name, long offset, int nameLength, int contentLength, long version)
+            throws IOException;
+    }
+    
+    private final Path entriesDir;
+    private final long maxSegmentBytes;
+    // Changed under the store's lock, read without it
+    private final Map<String, Location> locations = new ConcurrentHashMap<>();
+    private final ConcurrentNavigableMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    private final ScheduledExecutorService compactor;
+    private Segment active;
+    
+    SegmentEntryStore(Path entriesDir, long maxSegmentBytes) throws IOException {
+        this.entriesDir = entriesDir;
+        this.maxSegmentBytes = maxSegmentBytes;
+        load();
+        this.compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "diary-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::compact, 0, COMPACTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+    
+    static boolean exists(Path entriesDir) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(entriesDir, SEGMENT_GLOB)) {
+            return stream.iterator().hasNext();
+        }
+    }
+    
+    /** Deletes every segment and hint file, used once entries were moved elsewhere. */
+    static void deleteAll(Path entriesDir) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(entriesDir, "segment_*")) {
+            for (Path path : stream) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+    
+    @Override
+    public synchronized void write(String filename, byte[] content) throws IOException {
+        byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+        long offset = append(PUT, name, 0, content);
+        put(filename, new Location(active.id, offset, name.length, content.length, versionOf(active.id, offset), false));
+    }
+    
+    @Override
+    public byte[] read(String filename) throws IOException {
+        while (true) {
+            Location location = locate(filename);
+            Segment segment = segments.get(location.segment);
+            if (segment == null) {
+                continue; // Compacted away; the entry has moved
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(location.contentLength);
+            try {
+                readFully(segment.channel, buffer, location.contentOffset());
+                return buffer.array();
+            } catch (ClosedChannelException e) {
+                if (segments.get(location.segment) == segment) {
+                    throw e; // Closed for good, not by compaction
+                }
+            }
+        }
+    }
+    
+    @Override
+    public ByteBuffer map(String filename) throws IOException {
+        while (true) {
+            Location location = locate(filename);
+            Segment segment = segments.get(location.segment);
+            if (segment == null) {
+                continue;
+            }
+            long start = location.contentOffset();
+            long end = start + location.contentLength;
+            try {
+                ByteBuffer view = segment.map(end).duplicate();
+                view.position((int) start).limit((int) end);
+                return view.slice();
+            } catch (ClosedChannelException e) {
+                if (segments.get(location.segment) == segment) {
+                    throw e;
+                }
+            }
+        }
+    }
+    
+    @Override
+    public synchronized boolean delete(String filename) throws IOException {
+        Location previous = locations.remove(filename);
+        if (previous == null) {
+            return false;
+        }
+        append(TOMBSTONE, filename.getBytes(StandardCharsets.UTF_8), 0, new byte[0]);
+        retire(previous);
+        return true;
+    }
+    
+    // Where the entry was written, kept when compaction moves it
+    @Override
+    public long version(String filename) throws IOException {
+        return locate(filename).version;
+    }
+    
+    @Override
+    public long size(String filename) throws IOException {
+        return locate(filename).contentLength;
+    }
+    
+    @Override
+    public List<String> list() {
+        return new ArrayList<>(locations.keySet());
+    }
+    
+    @Override
+    public long count() {
+        return locations.size();
+    }
+    
+    @Override
+    public synchronized void sync() throws IOException {
+        for (Segment segment : segments.values()) {
+            segment.channel.force(false);
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        compactor.shutdownNow();
+        try {
+            compactor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            for (Segment segment : segments.values()) {
+                segment.channel.close();
+            }
+        }
+    }
+    
+    private void load() throws IOException {
+        List<Integer> ids = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(entriesDir, SEGMENT_GLOB)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    ids.add(Integer.parseInt(name.substring("segment_".length(), name.length() - ".log".length())));
+                } catch (NumberFormatException e) {
+                    System.err.println("Warning: Ignoring unexpected segment file " + name);
+                }
+            }
+        }
+        Collections.sort(ids);
+        
+        for (int i = 0; i < ids.size(); i++) {
+            boolean last = i == ids.size() - 1;
+            Segment segment = openSegment(ids.get(i));
+            segments.put(segment.id, segment);
+            RecordVisitor loader = (type, name, offset, nameLength, contentLength, version) ->
+                apply(type, name, new Location(segment.id, offset, nameLength, contentLength, version, type == MOVED));
+            if (!last && Files.exists(segment.hintPath())) {
+                readHint(segment, loader);
+                segment.size = segment.channel.size();
+            } else {
+                segment.size = scan(segment, loader);
+                if (segment.size < segment.channel.size()) {
+                    if (last) {
+                        System.err.println("Warning: Truncating incomplete record at the end of " + segment.path.getFileName());
+                        segment.channel.truncate(segment.size);
+                    } else {
+                        System.err.println("Warning: Skipping corrupt tail of " + segment.path.getFileName());
+                    }
+                }
+            }
+            if (last) {
+                active = segment;
+            }
+        }
+        if (active == null) {
+            active = openSegment(1);
+            segments.put(active.id, active);
+        }
+    }
+    
+    private void apply(byte type, String name, Location location) {
+        if (type == TOMBSTONE) {
+            Location previous = locations.remove(name);
+            if (previous != null) {
+                retire(previous);
+            }
+        } else {
+            put(name, location);
+        }
+    }
+    
+    private void put(String name, Location location) {
+        Location previous = locations.put(name, location);
+        segments.get(location.segment).liveBytes += location.recordSize();
+        if (previous != null) {
+            retire(previous);
+        }
+    }
+    
+    private Location locate(String filename) throws FileNotFoundException {
+        Location location = locations.get(filename);
+        if (location == null) {
+            throw new FileNotFoundException("Entry not found: " + filename);
+        }
+        return location;
+    }
+    
+    private static long versionOf(int segment, long offset) {
+        return ((long) segment << 40) | offset;
+    }
+    
+    private void retire(Location location) {
+        Segment segment = segments.get(location.segment);
+        if (segment != null) {
+            segment.liveBytes -= location.recordSize();
+        }
+    }
+    
+    private Segment openSegment(int id) throws IOException {
+        Path path = entriesDir.resolve(String.format("segment_%06d.log", id));
+        FileChannel channel = FileChannel.open(path,
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new Segment(id, path, channel);
+    }
+    
+    // The version is only written for moved records
+    private long append(byte type, byte[] name, long version, byte[] content) throws IOException {
+        int versionBytes = type == MOVED ? VERSION_BYTES : 0;
+        int recordSize = HEADER_BYTES + name.length + versionBytes + content.length + TRAILER_BYTES;
+        if (active.size > 0 && active.size + recordSize > maxSegmentBytes) {
+            roll();
+        }
+        ByteBuffer record = ByteBuffer.allocate(recordSize);
+        record.put(type).putShort((short) name.length).putInt(content.length).put(name);
+        if (type == MOVED) {
+            record.putLong(version);
+        }
+        record.put(content);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, record.position());
+        record.putInt((int) crc.getValue());
+        record.flip();
+        
+        long offset = active.size;
+        long position = offset;
+        while (record.hasRemaining()) {
+            position += active.channel.write(record, position);
+        }
+        active.size += recordSize;
+        return offset;
+    }
+    
+    private void roll() throws IOException {
+        writeHint(active);
+        active = openSegment(active.id + 1);
+        segments.put(active.id, active);
+    }
+    
+    private long scan(Segment segment, RecordVisitor visitor) throws IOException {
+        long segmentSize = Files.size(segment.path);
+        long position = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment.path)))) {
+            CRC32 crc = new CRC32();
+            while (true) {
+                int type = in.read();
+                if (type == -1) {
+                    break;
+                }
+                int nameLength = in.readUnsignedShort();
+                int contentLength = in.readInt();
+                int versionBytes = type == MOVED ? VERSION_BYTES : 0;
+                // A corrupt length must not be allocated before the CRC can reject it
+                long left = segmentSize - position - HEADER_BYTES - TRAILER_BYTES - versionBytes;
+                if ((type != PUT && type != TOMBSTONE && type != MOVED) || contentLength < 0
+                        || (long) nameLength + contentLength > left) {
+                    break;
+                }
+                byte[] name = new byte[nameLength];
+                byte[] version = new byte[versionBytes];
+                byte[] content = new byte[contentLength];
+                in.readFully(name);
+                in.readFully(version);
+                in.readFully(content);
+                crc.reset();
+                crc.update(type);
+                crc.update((nameLength >>> 8) & 0xFF);
+                crc.update(nameLength & 0xFF);
+                crc.update(ByteBuffer.allocate(4).putInt(contentLength).array());
+                crc.update(name);
+                crc.update(version);
+                crc.update(content);
+                if (in.readInt() != (int) crc.getValue()) {
+                    break;
+                }
+                visitor.visit((byte) type, new String(name, StandardCharsets.UTF_8), position, nameLength, contentLength,
+                    type == MOVED ? ByteBuffer.wrap(version).getLong() : versionOf(segment.id, position));
+                position += HEADER_BYTES + nameLength + versionBytes + contentLength + TRAILER_BYTES;
+            }
+        } catch (EOFException e) {
+            // Torn write at the end of the segment; keep what was read so far
+        }
+        return position;
+    }
+    
+    private void writeHint(Segment segment) throws IOException {
+        Path temp = segment.hintPath().resolveSibling(segment.hintPath().getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            scan(segment, (type, name, offset, nameLength, contentLength, version) -> {
+                out.writeByte(type);
+                out.writeUTF(name);
+                out.writeLong(offset);
+                out.writeShort(nameLength);
+                out.writeInt(contentLength);
+                if (type == MOVED) {
+                    out.writeLong(version);
+                }
+            });
+        }
+        Files.move(temp, segment.hintPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    private void readHint(Segment segment, RecordVisitor visitor) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment.hintPath())))) {
+            while (true) {
+                int type = in.read();
+                if (type == -1) {
+                    break;
+                }
+                String name = in.readUTF();
+                long offset = in.readLong();
+                int nameLength = in.readUnsignedShort();
+                int contentLength = in.readInt();
+                long version = type == MOVED ? in.readLong() : versionOf(segment.id, offset);
+                visitor.visit((byte) type, name, offset, nameLength, contentLength, version);
+            }
+        }
+    }
+    
+    private void compact() {
+        List<Integer> sealed = new ArrayList<>();
+        long liveBytes = 0;
+        long size = 0;
+        synchronized (this) {
+            for (Segment segment : segments.values()) {
+                if (segment != active) {
+                    sealed.add(segment.id);
+                    liveBytes += segment.liveBytes;
+                    size += segment.size;
+                }
+            }
+        }
+        if (sealed.isEmpty() || liveBytes >= size * COMPACTION_THRESHOLD) {
+            return;
+        }
+        // Oldest first, so by the time a segment is rewritten nothing older
+        // is left and its tombstones can be dropped
+        for (int id : sealed) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            try {
+                compactSegment(id);
+            } catch (IOException e) {
+                System.err.println("Warning: Segment compaction failed: " + e.getMessage());
+                return;
+            }
+        }
+    }
+    
+    // Live records are re-appended to the active segment. Tombstones only
+    // have to survive while an older segment may still hold the entry.
+    private synchronized void compactSegment(int id) throws IOException {
+        Segment segment = segments.get(id);
+        if (segment == null || segment == active) {
+            return;
+        }
+        boolean hasOlder = segments.firstKey() < id;
+        scan(segment, (type, name, offset, nameLength, contentLength, version) -> {
+            Location location = locations.get(name);
+            if (type != TOMBSTONE && location != null && location.segment == id && location.offset == offset) {
+                ByteBuffer content = ByteBuffer.allocate(contentLength);
+                readFully(segment.channel, content, location.contentOffset());
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                long moved = append(MOVED, bytes, location.version, content.array());
+                put(name, new Location(active.id, moved, bytes.length, contentLength, location.version, true));
+            } else if (type == TOMBSTONE && hasOlder && location == null) {
+                append(TOMBSTONE, name.getBytes(StandardCharsets.UTF_8), 0, new byte[0]);
+            }
+        });
+        // The copies must be on disk before the only other copy goes away
+        active.channel.force(false);
+        segments.remove(id);
+        segment.channel.close();
+        Files.deleteIfExists(segment.hintPath());
+        Files.deleteIfExists(segment.path);
+    }
+    
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new EOFException("Unexpected end of segment");
+            }
+        }
+    }
+}
\ No newline at end of file
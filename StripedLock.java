@@ -0,0 +1,89 @@
+package com.diary;
+
+import java.util.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Per-entry locks without a lock object per entry: each filename maps to one
+ * of a fixed number of stripes. Writers of different entries rarely share a
+ * stripe and run in parallel; writers of the same entry take turns, and
+ * readers only wait for writers.
+ *
+ * Several entries are locked stripe by stripe in ascending order, so two
+ * threads locking overlapping batches cannot deadlock.
+ */
+class StripedLock {
+    /** Stripes locked by one call, released together. */
+    interface Held {
+        void release();
+    }
+    
+    private final ReadWriteLock[] stripes;
+    
+    StripedLock(int stripes) {
+        this.stripes = new ReadWriteLock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new ReentrantReadWriteLock();
+        }
+    }
+    
+    /** Shared lock for reading the entry. */
+    Held read(String key) {
+        Lock stripe = stripes[stripeOf(key)].readLock();
+        stripe.lock();
+        return stripe::unlock;
+    }
+    
+    /** Exclusive lock for changing the entry. */
+    Held lock(String key) {
+        Lock stripe = stripes[stripeOf(key)].writeLock();
+        stripe.lock();
+        return stripe::unlock;
+    }
+    
+    /** Exclusive lock on every entry, for work that has to see them all at rest. */
+    Held lockAll() {
+        BitSet all = new BitSet(stripes.length);
+        all.set(0, stripes.length);
+        return lock(all);
+    }
+    
+    Held lock(Collection<String> keys) {
+        // A sorted set of stripe numbers gives the locking order and drops duplicates
+        BitSet needed = new BitSet(stripes.length);
+        for (String key : keys) {
+            needed.set(stripeOf(key));
+        }
+        return lock(needed);
+    }
+    
+    private Held lock(BitSet needed) {
+        int[] order = needed.stream().toArray();
+        int locked = 0;
+        try {
+            for (int stripe : order) {
+                stripes[stripe].writeLock().lock();
+                locked++;
+            }
+        } catch (RuntimeException | Error e) {
+            unlock(order, locked);
+            throw e;
+        }
+        return () -> unlock(order, order.length);
+    }
+    
+    private void unlock(int[] order, int count) {
+        for (int i = count - 1; i >= 0; i--) {
+            stripes[order[i]].writeLock().unlock();
+        }
+    }
+    
+    private int stripeOf(String key) {
+        // Spread the hash so that names differing only at the end land apart
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return Math.floorMod(hash * 0x9E3779B9, stripes.length);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,47 @@
+package com.diary;
+
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the diary benchmarks and writes the results as JSON to
+ * {@code benchmarks/results/}, one file per run, for tracking regressions.
+ * Accepts the usual JMH command line, e.g.
+ * {@code PersistenceBenchmark.search -p entries=100000 -p searchMode=ranked,substring}.
+ *
+ * <p>The Maven module in this directory builds the diary sources and the
+ * benchmarks into one jar with this class as its entry point. Run it from
+ * the project directory so the results land in {@code benchmarks/results/}:
+ *
+ * <pre>
+ * (cd benchmarks &amp;&amp; mvn package)
+ * java -jar benchmarks/target/benchmarks.jar PersistenceBenchmark -p entries=1000
+ * </pre>
+ */
+public class DiaryBenchmarks {
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        Path results = Paths.get("benchmarks", "results");
+        Files.createDirectories(results);
+        String stamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss"));
+        
+        OptionsBuilder options = new OptionsBuilder();
+        options.parent(commandLine);
+        if (commandLine.getIncludes().isEmpty()) {
+            options.include("com\\.diary\\..*Benchmark");
+        }
+        if (!commandLine.getResultFormat().hasValue()) {
+            options.resultFormat(ResultFormatType.JSON);
+        }
+        if (!commandLine.getResult().hasValue()) {
+            options.result(results.resolve("jmh_" + stamp + ".json").toString());
+        }
+        new Runner(options.build()).run();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,286 @@
+package com.diary;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Drives a {@link DiaryServer} with many concurrent clients, each sending a
+ * mix of reads, listings, searches and writes back to back, and prints
+ * throughput and latency per request type.
+ *
+ * <pre>
+ * DiaryLoadTest [--clients 2000] [--seconds 20] [--entries 10000] [--url http://localhost:8080]
+ * </pre>
+ *
+ * Without {@code --url} it starts a server on a free port against a diary
+ * of {@link SyntheticText} generated in a temporary directory, deleted
+ * afterwards. With it, reads and searches use whatever entries the diary
+ * has. Writes create new entries from the year 9000 on, never replacing
+ * one, and are deleted again when the test ends. Clients run on virtual
+ * threads where the JDK has them.
+ */
+public class DiaryLoadTest {
+    private enum Operation { READ, LIST, SEARCH, WRITE }
+    
+    // Out of 100 requests
+    private static final int READS = 50;
+    private static final int LISTS = 15;
+    private static final int SEARCHES = 15;
+    private static final int LIST_LIMIT = 50;
+    private static final Duration WARMUP = Duration.ofSeconds(3);
+    private static final Pattern FILENAME = Pattern.compile("\"filename\":\\s*\"([^\"]+)\"");
+    private static final LocalDateTime FIRST_ENTRY = LocalDateTime.of(2000, 1, 1, 0, 0);
+    // Far past any real entry; each client writes its own minutes from here
+    private static final LocalDateTime FIRST_WRITE = LocalDateTime.of(9000, 1, 1, 0, 0);
+    private static final int ENTRY_SIZE = 512;
+    private static final int BATCH_SIZE = 1000;
+    private static final int SAMPLE_SIZE = 1024;
+    
+    private final HttpClient client = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_1_1)
+        .connectTimeout(Duration.ofSeconds(10))
+        .build();
+    private final URI base;
+    private final String[] sample;
+    private final String keyword;
+    private final int entries;
+    private final Map<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+    private final Map<Operation, AtomicLong> errors = new EnumMap<>(Operation.class);
+    private final Queue<String> created = new ConcurrentLinkedQueue<>();
+    private volatile boolean measuring;
+    private volatile boolean running = true;
+    
+    private DiaryLoadTest(URI base, String[] sample, String keyword, int entries) {
+        this.base = base;
+        this.sample = sample;
+        this.keyword = keyword;
+        this.entries = entries;
+        for (Operation operation : Operation.values()) {
+            latencies.put(operation, new LatencyHistogram());
+            errors.put(operation, new AtomicLong());
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        }
+        int clients = Integer.parseInt(options.getOrDefault("clients", "2000"));
+        int seconds = Integer.parseInt(options.getOrDefault("seconds", "20"));
+        int entries = Integer.parseInt(options.getOrDefault("entries", "10000"));
+        
+        if (options.containsKey("url")) {
+            URI base = URI.create(options.get("url"));
+            DiaryLoadTest test = new DiaryLoadTest(base, fetchSample(base), "the", entries);
+            test.run(clients, seconds);
+            test.removeCreated();
+            return;
+        }
+        
+        Path root = Files.createTempDirectory("diary-load");
+        DiaryManager manager = null;
+        DiaryServer server = null;
+        try {
+            DiaryConfig config = new DiaryConfig();
+            config.setEntriesDirectory(root.resolve("entries").toString());
+            config.setBackupDirectory(root.resolve("backups").toString());
+            config.setSetting("searchMode", "ranked");
+            System.out.println("Generating " + entries + " entries...");
+            SyntheticText words = new SyntheticText(new Random(entries), ENTRY_SIZE);
+            generate(config, words, entries);
+            String[] sample = new String[Math.min(SAMPLE_SIZE, entries)];
+            for (int i = 0; i < sample.length; i++) {
+                sample[i] = DiaryEntry.filenameFor(FIRST_ENTRY.plusMinutes((long) i * entries / sample.length));
+            }
+            
+            manager = new DiaryManager(config);
+            server = new DiaryServer(manager, 0);
+            server.start();
+            URI base = URI.create("http://localhost:" + server.getPort());
+            new DiaryLoadTest(base, sample, words.keyword(), entries).run(clients, seconds);
+        } finally {
+            if (server != null) {
+                server.stop();
+            }
+            if (manager != null) {
+                manager.shutdown();
+            }
+            try (Stream<Path> paths = Files.walk(root)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+    
+    // Entries a minute apart; the server's manager opens the directory itself afterwards
+    private static void generate(DiaryConfig config, SyntheticText words, int entries) throws IOException {
+        Random random = new Random(entries * 31L);
+        try (DiaryFileHandler handler = new DiaryFileHandler(config)) {
+            List<DiaryEntry> batch = new ArrayList<>(BATCH_SIZE);
+            for (int i = 0; i < entries; i++) {
+                batch.add(new DiaryEntry(FIRST_ENTRY.plusMinutes(i), words.text(random)));
+                if (batch.size() == BATCH_SIZE) {
+                    handler.saveEntries(batch);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                handler.saveEntries(batch);
+            }
+        }
+    }
+    
+    private static String[] fetchSample(URI base) throws IOException, InterruptedException {
+        HttpResponse<String> response = HttpClient.newHttpClient().send(
+            HttpRequest.newBuilder(base.resolve("/entries?limit=1000")).build(),
+            HttpResponse.BodyHandlers.ofString());
+        List<String> filenames = new ArrayList<>();
+        Matcher filename = FILENAME.matcher(response.body());
+        while (filename.find()) {
+            filenames.add(filename.group(1));
+        }
+        if (filenames.isEmpty()) {
+            throw new IllegalStateException("The diary at " + base + " has no entries to read");
+        }
+        return filenames.toArray(new String[0]);
+    }
+    
+    private void run(int clients, int seconds) throws InterruptedException {
+        ExecutorService virtual = DiaryServer.newVirtualThreadExecutor();
+        ExecutorService pool = virtual != null ? virtual : Executors.newCachedThreadPool();
+        System.out.println(clients + " clients on " + (virtual != null ? "virtual" : "platform") + " threads against "
+            + base + ", " + WARMUP.getSeconds() + " s warmup then " + seconds + " s measured");
+        for (int i = 0; i < clients; i++) {
+            int id = i;
+            pool.execute(() -> client(id));
+        }
+        Thread.sleep(WARMUP.toMillis());
+        measuring = true;
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        measuring = false;
+        long elapsed = System.nanoTime() - start;
+        running = false;
+        pool.shutdown();
+        pool.awaitTermination(30, TimeUnit.SECONDS);
+        report(elapsed);
+    }
+    
+    // Leaves someone else's diary as it was found; entries written by an
+    // interrupted run are the ones from the year 9000 on
+    private void removeCreated() {
+        System.out.println("Deleting " + created.size() + " entries written by the load test...");
+        long failed = created.parallelStream().filter(filename -> !delete(filename)).count();
+        if (failed > 0) {
+            System.err.println("Warning: Could not delete " + failed + " of them");
+        }
+    }
+    
+    // Connections kept alive through the run may have gone stale, and the
+    // client only retries GETs by itself
+    private boolean delete(String filename) {
+        HttpRequest request = HttpRequest.newBuilder(base.resolve("/entries/" + filename)).DELETE().build();
+        for (int attempt = 0; attempt < 3; attempt++) {
+            try {
+                int status = client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+                return status == 204 || status == 404;
+            } catch (IOException e) {
+                // Try again on a fresh connection
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return false;
+    }
+    
+    private void client(int id) {
+        Random random = new Random(id);
+        long written = 0;
+        while (running) {
+            int pick = random.nextInt(100);
+            Operation operation;
+            HttpRequest request;
+            if (pick < READS) {
+                operation = Operation.READ;
+                request = get("/entries/" + sample[random.nextInt(sample.length)]);
+            } else if (pick < READS + LISTS) {
+                operation = Operation.LIST;
+                request = get("/entries?limit=" + LIST_LIMIT + "&offset=" + random.nextInt(Math.max(1, entries - LIST_LIMIT)));
+            } else if (pick < READS + LISTS + SEARCHES) {
+                operation = Operation.SEARCH;
+                request = get("/search?q=" + URLEncoder.encode(keyword, StandardCharsets.UTF_8));
+            } else {
+                operation = Operation.WRITE;
+                // Created, never replaced: an existing entry at this minute gets a 409
+                LocalDateTime timestamp = FIRST_WRITE.plusMinutes(id * 100_000L + written++);
+                request = HttpRequest.newBuilder(base.resolve("/entries"))
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString("{\"timestamp\": \"" + timestamp
+                        + "\", \"content\": \"load test entry " + written + " by client " + id + "\"}"))
+                    .build();
+                if (send(operation, request) == 201) {
+                    created.add(DiaryEntry.filenameFor(timestamp));
+                }
+                continue;
+            }
+            send(operation, request);
+        }
+    }
+    
+    private HttpRequest get(String path) {
+        return HttpRequest.newBuilder(base.resolve(path)).build();
+    }
+    
+    // Returns the response status, or -1 if there was none
+    private int send(Operation operation, HttpRequest request) {
+        long start = System.nanoTime();
+        int status;
+        try {
+            status = client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+        } catch (IOException e) {
+            status = -1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+        if (measuring) {
+            latencies.get(operation).record(System.nanoTime() - start);
+            if (status < 0 || status >= 400) {
+                errors.get(operation).incrementAndGet();
+            }
+        }
+        return status;
+    }
+    
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        long total = 0;
+        long failed = 0;
+        System.out.printf("%-8s %10s %10s %10s %10s %10s %8s%n", "request", "count", "req/s", "p50 ms", "p99 ms", "max ms", "errors");
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram histogram = latencies.get(operation);
+            long count = histogram.getCount();
+            total += count;
+            failed += errors.get(operation).get();
+            System.out.printf("%-8s %10d %10.0f %10.2f %10.2f %10.2f %8d%n", operation.name().toLowerCase(Locale.ROOT),
+                count, count / seconds, histogram.percentile(0.50) / 1e6, histogram.percentile(0.99) / 1e6,
+                histogram.getMax() / 1e6, errors.get(operation).get());
+        }
+        System.out.printf("%-8s %10d %10.0f %43d%n", "total", total, total / seconds, failed);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,67 @@
+package com.diary;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The public operations of {@link DiaryFileHandler} against a
+ * {@link SyntheticDiary}. Writes add entries after the generated ones, so
+ * they never replace an entry the read benchmarks rely on.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PersistenceBenchmark {
+    private final Random random = new Random(7);
+    private long written;
+    
+    @Benchmark
+    public void saveEntry(SyntheticDiary diary) throws IOException {
+        // A minute past the newest entry written so far, so names never collide
+        long minute = diary.entries + written++;
+        diary.handler.saveEntry(new DiaryEntry(SyntheticDiary.FIRST_ENTRY.plusMinutes(minute), diary.text(random)));
+    }
+    
+    @Benchmark
+    public String readEntry(SyntheticDiary diary) throws IOException {
+        return diary.handler.readEntry(diary.sample[random.nextInt(diary.sample.length)]);
+    }
+    
+    @Benchmark
+    public List<String> listEntries(SyntheticDiary diary) throws IOException {
+        return diary.handler.listEntries();
+    }
+    
+    /** One page from the middle of the diary, as the entry browser asks for it. */
+    @Benchmark
+    public List<String> listEntriesPage(SyntheticDiary diary) throws IOException {
+        return diary.handler.listEntries(diary.entries / 2, 10);
+    }
+    
+    @Benchmark
+    public List<DiaryEntry> searchEntries(SyntheticDiary diary) throws IOException {
+        return diary.search(diary.keyword);
+    }
+    
+    @Benchmark
+    public long getTotalEntries(SyntheticDiary diary) throws IOException {
+        return diary.handler.getTotalEntries();
+    }
+    
+    /** Backups of large diaries take seconds, so each one is timed on its own. */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 5)
+    public void createBackup(SyntheticDiary diary) throws IOException {
+        diary.handler.createBackup();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,114 @@
+package com.diary;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * A generated diary in a temporary directory, shared by the benchmarks of
+ * one trial. Entries are a minute apart and made of {@link SyntheticText}.
+ * Everything is seeded, so every run sees the same diary for the same
+ * parameters.
+ *
+ * The storage and search parameters map onto the diary settings of the same
+ * name; pass {@code -p storageMode=files,segments} and so on to compare
+ * implementations head to head.
+ */
+@State(Scope.Benchmark)
+public class SyntheticDiary {
+    static final LocalDateTime FIRST_ENTRY = LocalDateTime.of(2000, 1, 1, 0, 0);
+    private static final int BATCH_SIZE = 1000;
+    private static final int SAMPLE_SIZE = 1024;
+    
+    @Param({"1000", "100000", "1000000"})
+    public int entries;
+    
+    /** Approximate entry size in bytes. */
+    @Param({"512"})
+    public int entrySize;
+    
+    @Param({"files", "segments"})
+    public String storageMode;
+    
+    @Param({"standard"})
+    public String readMode;
+    
+    @Param({"substring"})
+    public String searchMode;
+    
+    @Param({"1"})
+    public String searchThreads;
+    
+    @Param({"full"})
+    public String backupMode;
+    
+    DiaryFileHandler handler;
+    DiaryConfig config;
+    /** Existing entries, picked evenly across the diary. */
+    String[] sample;
+    /** A word of middling frequency, matched by a few percent of the entries. */
+    String keyword;
+    
+    private Path root;
+    private SyntheticText words;
+    
+    @Setup(Level.Trial)
+    public void create() throws IOException {
+        root = Files.createTempDirectory("diary-bench");
+        config = new DiaryConfig();
+        config.setEntriesDirectory(root.resolve("entries").toString());
+        config.setBackupDirectory(root.resolve("backups").toString());
+        config.setSetting("storageMode", storageMode);
+        config.setSetting("readMode", readMode);
+        config.setSetting("searchMode", searchMode);
+        config.setSetting("searchThreads", searchThreads);
+        config.setSetting("backupMode", backupMode);
+        config.setSetting("backupRetention", "2");
+        handler = new DiaryFileHandler(config);
+        
+        Random random = new Random(entries * 31L + entrySize);
+        words = new SyntheticText(random, entrySize);
+        keyword = words.keyword();
+        
+        List<DiaryEntry> batch = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < entries; i++) {
+            batch.add(new DiaryEntry(FIRST_ENTRY.plusMinutes(i), text(random)));
+            if (batch.size() == BATCH_SIZE) {
+                handler.saveEntries(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            handler.saveEntries(batch);
+        }
+        
+        sample = new String[Math.min(SAMPLE_SIZE, entries)];
+        for (int i = 0; i < sample.length; i++) {
+            sample[i] = DiaryEntry.filenameFor(FIRST_ENTRY.plusMinutes((long) i * entries / sample.length));
+        }
+    }
+    
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        handler.close();
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+    
+    /** Searches the way DiaryManager does for the configured search mode. */
+    List<DiaryEntry> search(String query) throws IOException {
+        return config.getSettings().isRankedSearch()
+            ? handler.searchRanked(query, config.getSettings().getSearchResults())
+            : handler.searchEntries(query);
+    }
+    
+    /** Text of about {@link #entrySize} bytes in the diary's word distribution. */
+    String text(Random random) {
+        return words.text(random);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,48 @@
+package com.diary;
+
+import java.util.Random;
+
+/**
+ * Diary-like text made of words drawn from a seeded vocabulary with a
+ * skewed distribution, so searches hit a realistic mix of common and rare
+ * terms. Free of JMH, so the load test can generate its diary too.
+ */
+class SyntheticText {
+    private static final int VOCABULARY_SIZE = 5000;
+    
+    private final String[] vocabulary = new String[VOCABULARY_SIZE];
+    private final int entrySize;
+    
+    /** @param entrySize approximate entry size in bytes */
+    SyntheticText(Random random, int entrySize) {
+        this.entrySize = entrySize;
+        for (int i = 0; i < VOCABULARY_SIZE; i++) {
+            vocabulary[i] = word(random);
+        }
+    }
+    
+    /** A word of middling frequency, matched by a few percent of the entries. */
+    String keyword() {
+        return vocabulary[VOCABULARY_SIZE / 50];
+    }
+    
+    /** Text of about the entry size in the vocabulary's word distribution. */
+    String text(Random random) {
+        StringBuilder text = new StringBuilder(entrySize + 16);
+        while (text.length() < entrySize) {
+            // Squaring a uniform index skews picks towards the start of the vocabulary
+            double pick = random.nextDouble();
+            text.append(vocabulary[(int) (pick * pick * VOCABULARY_SIZE)]);
+            text.append(random.nextInt(12) == 0 ? ".\n" : " ");
+        }
+        return text.toString();
+    }
+    
+    private static String word(Random random) {
+        char[] letters = new char[3 + random.nextInt(7)];
+        for (int i = 0; i < letters.length; i++) {
+            letters[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(letters);
+    }
+}
\ No newline at end of file
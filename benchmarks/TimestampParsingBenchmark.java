@@ -0,0 +1,72 @@
+package com.diary;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares parsing entry filenames back into timestamps: the original
+ * replace-and-format path against the fixed-offset decoding in
+ * {@link DiaryEntry}. Each invocation parses every filename once, so the
+ * reported time is per filename.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(TimestampParsingBenchmark.FILENAMES)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TimestampParsingBenchmark {
+    static final int FILENAMES = 1_000_000;
+    private static final DateTimeFormatter FILENAME_FORMATTER = DateTimeFormatter.ofPattern("yyyy_MM_dd_HH_mm_ss");
+    
+    private String[] filenames;
+    
+    @Setup
+    public void createFilenames() {
+        Random random = new Random(42);
+        LocalDateTime start = LocalDateTime.of(2000, 1, 1, 0, 0);
+        filenames = new String[FILENAMES];
+        for (int i = 0; i < FILENAMES; i++) {
+            filenames[i] = DiaryEntry.filenameFor(start.plusSeconds(random.nextInt(Integer.MAX_VALUE)));
+        }
+    }
+    
+    /** The path used before: two replace calls and a new formatter per name. */
+    @Benchmark
+    public void replaceAndNewFormatter(Blackhole blackhole) {
+        for (String filename : filenames) {
+            String timestamp = filename.replace("diary_", "").replace(".txt", "");
+            blackhole.consume(LocalDateTime.parse(timestamp, DateTimeFormatter.ofPattern("yyyy_MM_dd_HH_mm_ss")));
+        }
+    }
+    
+    /** The same path with the formatter hoisted, to separate the two costs. */
+    @Benchmark
+    public void substringAndSharedFormatter(Blackhole blackhole) {
+        for (String filename : filenames) {
+            String timestamp = filename.substring("diary_".length(), filename.length() - ".txt".length());
+            blackhole.consume(LocalDateTime.parse(timestamp, FILENAME_FORMATTER).toEpochSecond(ZoneOffset.UTC));
+        }
+    }
+    
+    @Benchmark
+    public void timestampOf(Blackhole blackhole) {
+        for (String filename : filenames) {
+            blackhole.consume(DiaryEntry.timestampOf(filename));
+        }
+    }
+    
+    @Benchmark
+    public void epochSecondOf(Blackhole blackhole) {
+        for (String filename : filenames) {
+            blackhole.consume(DiaryEntry.epochSecondOf(filename));
+        }
+    }
+}
\ No newline at end of file